@@ -0,0 +1,231 @@
+
+/*
+ * No-Template - an extremely light-weight templating framework
+ *
+ * Copyright (c) 2015, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.notemplate;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.unkrig.commons.lang.AssertionUtil;
+import de.unkrig.commons.lang.protocol.ConsumerWhichThrows;
+
+/**
+ * A content-addressed store of files; output files are written as hard links to the files in the store, so that
+ * byte-identical output files (e.g. stylesheets, or unchanged pages of the many versions of a documentation site)
+ * occupy disk space only once.
+ * <p>
+ *   The store directory must be on the same file system as the output files, and should be outside of the site,
+ *   e.g. a sibling directory. Where hard links are not supported, the output files are written as regular files;
+ *   once that happened, the store is bypassed for all following files.
+ * </p>
+ * <p>
+ *   Because the output files are hard links, they must never be modified in place, but only replaced (which is what
+ *   {@link NoTemplate#render(Class, File, ConsumerWhichThrows) NoTemplate.render()} does).
+ * </p>
+ *
+ * @see RenderSession#setContentStore(ContentStore)
+ */
+public final
+class ContentStore {
+
+    static { AssertionUtil.enableAssertionsForThisClass(); }
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final Path directory;
+
+    private final AtomicLong fileCount      = new AtomicLong();
+    private final AtomicLong duplicateCount = new AtomicLong();
+    private final AtomicLong bytesSaved     = new AtomicLong();
+
+    /**
+     * Whether hard links to the content files can be created; becomes {@code false} on the first failure, so that
+     * the following files are written as regular files right away.
+     */
+    private volatile boolean canLink = true;
+
+    public
+    ContentStore(File directory) { this.directory = directory.getAbsoluteFile().toPath(); }
+
+    /**
+     * @return The directory where the content files are stored
+     */
+    public File
+    getDirectory() { return this.directory.toFile(); }
+
+    /**
+     * Hashes the bytes that the <var>producer</var> writes, and then replaces the <var>outputFile</var> with a hard
+     * link to the content file with that hash; the content file is created iff the content is not yet in the
+     * store. The parent directory of the <var>outputFile</var> must exist.
+     */
+    public <EX extends Throwable> void
+    write(File outputFile, ConsumerWhichThrows<? super OutputStream, EX> producer) throws IOException, EX {
+
+        // The content is buffered, because its hash (and thus the name of the content file) is only known after the
+        // last byte, and most pages are small.
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+
+        if (!this.canLink) {
+            producer.consume(baos);
+            this.fileCount.incrementAndGet();
+            ContentStore.writeAtomically(outputFile.toPath(), baos.toByteArray());
+            return;
+        }
+
+        DigestOutputStream dos = new DigestOutputStream(baos, ContentStore.newDigest());
+
+        producer.consume(dos);
+
+        byte[] content     = baos.toByteArray();
+        Path   contentFile = this.contentFile(dos.getMessageDigest().digest());
+        Path   output      = outputFile.toPath();
+
+        this.fileCount.incrementAndGet();
+
+        // The output file may be a link to the same content already, e.g. when an unchanged page is re-generated.
+        if (Files.exists(contentFile) && Files.exists(output) && Files.isSameFile(contentFile, output)) {
+            this.duplicateCount.incrementAndGet();
+            this.bytesSaved.addAndGet(content.length);
+            return;
+        }
+
+        boolean duplicate = Files.exists(contentFile);
+        if (!duplicate) ContentStore.writeAtomically(contentFile, content);
+
+        Path tmp = output.resolveSibling("." + output.getFileName() + ".link");
+        Files.deleteIfExists(tmp);
+        try {
+            Files.createLink(tmp, contentFile);
+        } catch (UnsupportedOperationException | FileSystemException e) {
+
+            // Maybe the content file has reached the file system's limit of links; replace it with a fresh copy.
+            try {
+                ContentStore.writeAtomically(contentFile, content);
+                Files.createLink(tmp, contentFile);
+                duplicate = false;
+            } catch (UnsupportedOperationException | FileSystemException e2) {
+
+                // E.g. the store is on a different file system; give up and write the output file (and all following
+                // output files) as a regular file.
+                this.canLink = false;
+                ContentStore.writeAtomically(output, content);
+                return;
+            }
+        }
+        Files.move(tmp, output, StandardCopyOption.ATOMIC_MOVE);
+
+        if (duplicate) {
+            this.duplicateCount.incrementAndGet();
+            this.bytesSaved.addAndGet(content.length);
+        }
+    }
+
+    /**
+     * @return The number of files that were {@link #write(File, ConsumerWhichThrows) written} through this store
+     */
+    public long
+    getFileCount() { return this.fileCount.get(); }
+
+    /**
+     * @return The number of files that were {@link #write(File, ConsumerWhichThrows) written} as links to existing
+     *         content
+     */
+    public long
+    getDuplicateCount() { return this.duplicateCount.get(); }
+
+    /**
+     * @return The number of bytes that were not written because the content already existed in the store
+     */
+    public long
+    getBytesSaved() { return this.bytesSaved.get(); }
+
+    @Override public String
+    toString() {
+        return (
+            this.getDuplicateCount()
+            + " of "
+            + this.getFileCount()
+            + " files were duplicates, "
+            + this.getBytesSaved()
+            + " bytes saved"
+        );
+    }
+
+    /**
+     * @return E.g. "<var>store-dir</var>{@code /3f/a0c1...}"
+     */
+    private Path
+    contentFile(byte[] hash) throws IOException {
+
+        char[] hex = new char[2 * hash.length];
+        for (int i = 0; i < hash.length; i++) {
+            hex[2 * i]     = ContentStore.HEX_DIGITS[(hash[i] >> 4) & 0xf];
+            hex[2 * i + 1] = ContentStore.HEX_DIGITS[hash[i] & 0xf];
+        }
+
+        Path subdirectory = this.directory.resolve(new String(hex, 0, 2));
+        Files.createDirectories(subdirectory);
+
+        return subdirectory.resolve(new String(hex, 2, hex.length - 2));
+    }
+
+    /**
+     * Writes the file under a temporary name, then renames it to <var>file</var>.
+     */
+    private static void
+    writeAtomically(Path file, byte[] content) throws IOException {
+
+        // Notice: "Files.createTempFile()" would create the file with restrictive permissions.
+        Path tmp = file.resolveSibling("." + file.getFileName() + "." + Thread.currentThread().getId() + ".new");
+        try {
+            Files.write(tmp, content);
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static MessageDigest
+    newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException nsae) {
+
+            // Every JRE must support SHA-256.
+            throw new AssertionError(nsae);
+        }
+    }
+}
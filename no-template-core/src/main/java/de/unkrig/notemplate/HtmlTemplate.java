@@ -26,7 +26,13 @@
 
 package de.unkrig.notemplate;
 
+import java.io.IOException;
+import java.nio.charset.Charset;
+
 import de.unkrig.commons.lang.AssertionUtil;
+import de.unkrig.commons.nullanalysis.Nullable;
+import de.unkrig.notemplate.management.OutputProfiler;
+import de.unkrig.notemplate.util.EncodableChars;
 import de.unkrig.notemplate.util.Entities;
 
 /**
@@ -35,10 +41,45 @@ import de.unkrig.notemplate.util.Entities;
 public abstract
 class HtmlTemplate extends NoTemplate {
 
-    private boolean replaceNonAsciiCharactersWithHtmlCharacterReferences = true;
-
     static { AssertionUtil.enableAssertionsForThisClass(); }
 
+    /**
+     * How an {@link HtmlTemplate} prints non-ASCII characters (code point 128 and above).
+     *
+     * @see HtmlTemplate#setNonAsciiMode(NonAsciiMode)
+     */
+    public
+    enum NonAsciiMode {
+
+        /**
+         * Print all characters as they are; the charset of the output must be able to encode them.
+         */
+        RAW,
+
+        /**
+         * Print all non-ASCII characters as HTML character references (the default).
+         *
+         * @see Entities#replaceNonAsciiCharactersWithHtmlCharacterReferences(String)
+         */
+        REFERENCES,
+
+        /**
+         * Print the characters that the charset of the output can encode as they are, and all others as HTML
+         * character references. This typically makes non-English pages a lot smaller. If the charset of the output
+         * is not known, then this is equivalent with {@link #REFERENCES}.
+         *
+         * @see Entities#replaceUnencodableCharactersWithHtmlCharacterReferences(String, EncodableChars)
+         */
+        AUTO,
+    }
+
+    private NonAsciiMode nonAsciiMode = NonAsciiMode.REFERENCES;
+
+    /**
+     * Cache for {@link #encodable()}.
+     */
+    @Nullable private EncodableChars encodable;
+
     /**
      * Configures whether all non-ASCII characters (code point 128 and above) that will be written should be silently
      * converted into "HTML character entity references", or, if an HTML character entity reference does not exist for
@@ -60,52 +101,184 @@ class HtmlTemplate extends NoTemplate {
      */
     public void
     setReplaceNonAsciiCharactersWithHtmlCharacterReferences(boolean value) {
-        this.replaceNonAsciiCharactersWithHtmlCharacterReferences = value;
+        this.setNonAsciiMode(value ? NonAsciiMode.REFERENCES : NonAsciiMode.RAW);
+    }
+
+    /**
+     * Configures how non-ASCII characters are printed; the default is {@link NonAsciiMode#REFERENCES}.
+     */
+    public void
+    setNonAsciiMode(NonAsciiMode mode) {
+
+        this.nonAsciiMode = mode;
+        this.encodable    = null;
+    }
+
+    /**
+     * Restores the default configuration; enables subclasses to implement {@link NoTemplate.Resettable}.
+     */
+    public void
+    reset() {
+        this.nonAsciiMode = NonAsciiMode.REFERENCES;
+        this.encodable    = null;
     }
 
     @Override public void
     l(String line) {
 
-        super.l(
-            this.replaceNonAsciiCharactersWithHtmlCharacterReferences
-            ? Entities.replaceNonAsciiCharactersWithHtmlCharacterReferences(line)
-            : line
-        );
-    }
+        if (!this.streaming()) {
+            super.l(this.replaceNonAscii(line));
+            return;
+        }
 
+        this.printReplacingNonAscii(line);
+        super.l();
+    }
 
     @Override public void
     l(String... lines) {
 
-        if (this.replaceNonAsciiCharactersWithHtmlCharacterReferences) {
-
-            for (int i = 0; i < lines.length; i++) {
-                String line = lines[i];
-                String s    = Entities.replaceNonAsciiCharactersWithHtmlCharacterReferences(line);
-                if (!s.equals(line)) {
-                    String[] tmp = new String[lines.length];
-                    System.arraycopy(lines, 0, tmp, 0, i);
-                    tmp[i++] = s;
-                    for (; i < lines.length; i++) {
-                        tmp[i] = Entities.replaceNonAsciiCharactersWithHtmlCharacterReferences(lines[i]);
-                    }
-                    lines = tmp;
-                    break;
-                }
-            }
+        if (this.nonAsciiMode == NonAsciiMode.RAW) {
+            super.l(lines);
+            return;
+        }
+
+        if (!this.streaming()) {
+            String[] tmp = new String[lines.length];
+            for (int i = 0; i < lines.length; i++) tmp[i] = this.replaceNonAscii(lines[i]);
+            super.l(tmp);
+            return;
         }
 
-        super.l(lines);
+        for (String line : lines) {
+            this.printReplacingNonAscii(line);
+            super.l();
+        }
     }
 
     @Override public void
     p(String text) {
 
-        super.p(
-            this.replaceNonAsciiCharactersWithHtmlCharacterReferences
-            ? Entities.replaceNonAsciiCharactersWithHtmlCharacterReferences(text)
-            : text
-        );
+        if (!this.streaming()) {
+            super.p(this.replaceNonAscii(text));
+            return;
+        }
+
+        this.printReplacingNonAscii(text);
+
+        if (OutputProfiler.isEnabled()) this.profile();
+    }
+
+    /**
+     * @return Whether non-ASCII characters must be replaced and can be written directly to {@link #out()}, without
+     *         creating intermediate strings
+     */
+    private boolean
+    streaming() { return this.nonAsciiMode != NonAsciiMode.RAW; }
+
+    /**
+     * Prints the given string with non-ASCII characters replaced according to the {@link
+     * #setNonAsciiMode(NonAsciiMode) non-ASCII mode}.
+     */
+    private void
+    printReplacingNonAscii(String s) {
+
+        EncodableChars e = this.encodable();
+        try {
+            if (e != null) {
+                Entities.appendUnencodableAsReferences(s, 0, s.length(), e, this.out());
+            } else {
+                Entities.appendNonAsciiAsReferences(s, 0, s.length(), this.out());
+            }
+        } catch (IOException ioe) {
+
+            // A PrintWriter never throws IOExceptions.
+            throw new AssertionError(ioe);
+        }
+    }
+
+    /**
+     * @return The characters that need not be replaced, or {@code null} iff all non-ASCII characters must be replaced
+     */
+    @Nullable private EncodableChars
+    encodable() {
+
+        if (this.nonAsciiMode != NonAsciiMode.AUTO) return null;
+
+        EncodableChars result = this.encodable;
+        if (result == null) {
+            Charset charset = this.charset();
+            if (charset == null) return null;
+            this.encodable = (result = EncodableChars.forCharset(charset));
+        }
+
+        return result;
+    }
+
+    /**
+     * Replaces non-ASCII characters according to the {@link #setNonAsciiMode(NonAsciiMode) non-ASCII mode}.
+     */
+    private String
+    replaceNonAscii(String s) {
+
+        switch (this.nonAsciiMode) {
+
+        case RAW:
+            return s;
+
+        case AUTO:
+            EncodableChars e = this.encodable();
+            if (e != null) return Entities.replaceUnencodableCharactersWithHtmlCharacterReferences(s, e);
+            break;
+
+        case REFERENCES:
+            break;
+        }
+
+        return Entities.replaceNonAsciiCharactersWithHtmlCharacterReferences(s);
+    }
+
+    /**
+     * Prints the given raw text with the five HTML special characters replaced with "character entities"; equivalent
+     * with {@code p(esc(rawText))}, but scans the text only once and writes it directly to the output, without
+     * creating intermediate strings.
+     *
+     * @see #esc(String)
+     * @see #setReplaceNonAsciiCharactersWithHtmlCharacterReferences(boolean)
+     */
+    public void
+    pText(String rawText) {
+
+        EncodableChars e = this.encodable();
+        try {
+            if (this.nonAsciiMode == NonAsciiMode.RAW) {
+                this.out().write(Entities.replaceXmlSpecialCharactersWithPredefinedEntities(rawText));
+            } else
+            if (e != null) {
+                Entities.escapeAndReplaceUnencodable(rawText, e, this.out());
+            } else
+            {
+                Entities.escapeAndReplaceNonAscii(rawText, this.out());
+            }
+        } catch (IOException ioe) {
+
+            // A PrintWriter never throws IOExceptions.
+            throw new AssertionError(ioe);
+        }
+
+        if (OutputProfiler.isEnabled()) this.profile();
+    }
+
+    /**
+     * Prints the given raw text with the five HTML special characters replaced with "character entities", and then a
+     * line separator; equivalent with {@code l(esc(rawText))}.
+     *
+     * @see #pText(String)
+     */
+    public void
+    lText(String rawText) {
+        this.pText(rawText);
+        super.l();
     }
 
     /**
@@ -129,4 +302,29 @@ class HtmlTemplate extends NoTemplate {
      */
     public static String
     esc(String rawText) { return Entities.replaceXmlSpecialCharactersWithPredefinedEntities(rawText); }
+
+    /**
+     * Escapes only what must be escaped in element text (between tags), i.e. "{@code &}" and "{@code <}"; cheaper and
+     * shorter than {@link #esc(String)}, but <em>not</em> suitable for attribute values.
+     *
+     * @see Entities#escapeText(String)
+     */
+    public static String
+    escText(String rawText) { return Entities.escapeText(rawText); }
+
+    /**
+     * Escapes only what must be escaped in a double-quoted attribute value, i.e. "{@code &}" and "{@code "}".
+     *
+     * @see Entities#escapeAttribute(String)
+     */
+    public static String
+    escAttr(String rawValue) { return Entities.escapeAttribute(rawValue); }
+
+    /**
+     * Percent-encodes the given URL for use in a double-quoted {@code href="..."} or {@code src="..."} attribute.
+     *
+     * @see Entities#encodeUrl(String)
+     */
+    public static String
+    escUrl(String url) { return Entities.encodeUrl(url); }
 }
@@ -0,0 +1,413 @@
+
+/*
+ * No-Template - an extremely light-weight templating framework
+ *
+ * Copyright (c) 2015, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.notemplate;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+import de.unkrig.commons.lang.AssertionUtil;
+import de.unkrig.commons.nullanalysis.Nullable;
+import de.unkrig.notemplate.management.OutputProfiler;
+
+/**
+ * Adds JSON-specific functionality to {@link NoTemplate}: Instead of printing hand-concatenated JSON text with {@link
+ * #l(String...)}, a JSON template generates its document in a streaming fashion, e.g.
+ * <pre>
+ *     this.beginObject();
+ *     this.field("name", name);
+ *     this.name("tags").beginArray();
+ *     for (String tag : tags) this.value(tag);
+ *     this.endArray();
+ *     this.endObject();
+ * </pre>
+ * <p>
+ *   Commas, colons and the escaping of strings are taken care of. The structural correctness of the document (e.g.
+ *   that names and values alternate inside an object, and that all objects and arrays are closed when the template
+ *   is {@link #render(Class, java.io.File, de.unkrig.commons.lang.protocol.ConsumerWhichThrows) rendered}) is only
+ *   checked in "validating mode" (see {@link #setValidating(boolean)}), so that production runs don't pay for it.
+ * </p>
+ */
+public abstract
+class JsonTemplate extends NoTemplate {
+
+    static { AssertionUtil.enableAssertionsForThisClass(); }
+
+    /**
+     * Iff this system property is set to {@code "true"}, then all JSON templates are validating by default.
+     */
+    public static final String VALIDATE_PROPERTY = "de.unkrig.notemplate.validateJson";
+
+    private static volatile boolean validatingByDefault = Boolean.getBoolean(JsonTemplate.VALIDATE_PROPERTY);
+
+    private static final byte OBJECT = 1, ARRAY = 2;
+
+    private boolean validating = JsonTemplate.validatingByDefault;
+    private boolean escapeNonAscii;
+
+    // The nesting state; index 0 is the top level.
+    private int       depth;
+    private boolean[] hasElements = new boolean[8];
+    private byte[]    kinds       = new byte[8];
+    private boolean   afterName;
+
+    // For the formatting of integral numbers.
+    private final char[] digits = new char[20];
+
+    /**
+     * Configures the default for {@link #setValidating(boolean)}.
+     */
+    public static void
+    setValidatingByDefault(boolean value) { JsonTemplate.validatingByDefault = value; }
+
+    /**
+     * Configures whether the structure of the generated document is checked; if so, then structural errors (e.g. a
+     * value in an object without a preceding {@link #name(String)}) cause an {@link IllegalStateException}.
+     * <p>
+     *   The default is <em>off</em>, unless changed through {@link #setValidatingByDefault(boolean)} or the system
+     *   property {@value #VALIDATE_PROPERTY}.
+     * </p>
+     */
+    public void
+    setValidating(boolean value) { this.validating = value; }
+
+    /**
+     * Configures whether non-ASCII characters in strings are written as "{@code \}{@code uXXXX}" escape sequences,
+     * which is useful if the document will not be read as UTF-8. By default, they are written as-is.
+     */
+    public void
+    setEscapeNonAscii(boolean value) { this.escapeNonAscii = value; }
+
+    /**
+     * Writes "<code>{</code>".
+     */
+    public JsonTemplate
+    beginObject() {
+        this.beforeValue();
+        this.out().write('{');
+        this.push(JsonTemplate.OBJECT);
+        return this.profiled();
+    }
+
+    /**
+     * Writes "<code>}</code>".
+     */
+    public JsonTemplate
+    endObject() {
+        this.pop(JsonTemplate.OBJECT);
+        this.out().write('}');
+        return this.profiled();
+    }
+
+    /**
+     * Writes "{@code [}".
+     */
+    public JsonTemplate
+    beginArray() {
+        this.beforeValue();
+        this.out().write('[');
+        this.push(JsonTemplate.ARRAY);
+        return this.profiled();
+    }
+
+    /**
+     * Writes "{@code ]}".
+     */
+    public JsonTemplate
+    endArray() {
+        this.pop(JsonTemplate.ARRAY);
+        this.out().write(']');
+        return this.profiled();
+    }
+
+    /**
+     * Writes the name of the next field of the current object, and the colon.
+     */
+    public JsonTemplate
+    name(String name) {
+
+        if (this.validating) {
+            if (this.kinds[this.depth] != JsonTemplate.OBJECT) throw new IllegalStateException("Name outside object");
+            if (this.afterName) throw new IllegalStateException("Name after name");
+        }
+
+        PrintWriter out = this.out();
+        if (this.hasElements[this.depth]) {
+            out.write(',');
+        } else {
+            this.hasElements[this.depth] = true;
+        }
+        this.string(name, out);
+        out.write(':');
+        this.afterName = true;
+        return this.profiled();
+    }
+
+    /**
+     * Writes the given string value, or "{@code null}".
+     */
+    public JsonTemplate
+    value(@Nullable String value) {
+        this.beforeValue();
+        if (value == null) {
+            this.out().write("null");
+        } else {
+            this.string(value, this.out());
+        }
+        return this.profiled();
+    }
+
+    /**
+     * Writes the given number.
+     */
+    public JsonTemplate
+    value(long value) {
+        this.beforeValue();
+        this.number(value, this.out());
+        return this.profiled();
+    }
+
+    /**
+     * Writes the given number. Integral values are written without fraction (e.g. "{@code 3}" instead of "{@code
+     * 3.0}").
+     *
+     * @throws IllegalArgumentException <var>value</var> is infinite or NaN, which JSON cannot represent
+     */
+    public JsonTemplate
+    value(double value) {
+
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new IllegalArgumentException("JSON cannot represent " + value);
+        }
+
+        this.beforeValue();
+
+        // "(long) value == value" holds for integral values, but also for values beyond the long range.
+        if (value == (long) value && Math.abs(value) < 1L << 53) {
+            this.number((long) value, this.out());
+        } else {
+            this.out().write(Double.toString(value));
+        }
+        return this.profiled();
+    }
+
+    /**
+     * Writes "{@code true}" or "{@code false}".
+     */
+    public JsonTemplate
+    value(boolean value) {
+        this.beforeValue();
+        this.out().write(value ? "true" : "false");
+        return this.profiled();
+    }
+
+    /**
+     * Writes "{@code null}".
+     */
+    public JsonTemplate
+    nullValue() {
+        this.beforeValue();
+        this.out().write("null");
+        return this.profiled();
+    }
+
+    /**
+     * Equivalent with {@code this.name(name).value(value)}.
+     */
+    public JsonTemplate
+    field(String name, @Nullable String value) { return this.name(name).value(value); }
+
+    /**
+     * Equivalent with {@code this.name(name).value(value)}.
+     */
+    public JsonTemplate
+    field(String name, long value) { return this.name(name).value(value); }
+
+    /**
+     * Equivalent with {@code this.name(name).value(value)}.
+     */
+    public JsonTemplate
+    field(String name, double value) { return this.name(name).value(value); }
+
+    /**
+     * Equivalent with {@code this.name(name).value(value)}.
+     */
+    public JsonTemplate
+    field(String name, boolean value) { return this.name(name).value(value); }
+
+    /**
+     * Writes the given <var>s</var> as a JSON string literal, including the enclosing double quotes.
+     * <p>
+     *   Scans the string only once, and copies runs of characters that need no escaping (typically: the entire
+     *   string) to the output in one piece.
+     * </p>
+     */
+    public static void
+    writeString(CharSequence s, PrintWriter out, boolean escapeNonAscii) {
+
+        out.write('"');
+
+        String str   = s.toString();
+        int    len   = str.length();
+        int    start = 0;
+        for (int i = 0; i < len; i++) {
+            char c = str.charAt(i);
+
+            // Fast path for the (frequent) characters that need no escaping.
+            if (c < 128) {
+                if (c >= ' ' && c != '"' && c != '\\') continue;
+            } else {
+                if (!escapeNonAscii && c != '\u2028' && c != '\u2029') continue;
+            }
+
+            if (i > start) out.write(str, start, i - start);
+            start = i + 1;
+
+            switch (c) {
+            case '"':  out.write("\\\""); break;
+            case '\\': out.write("\\\\"); break;
+            case '\b': out.write("\\b");  break;
+            case '\f': out.write("\\f");  break;
+            case '\n': out.write("\\n");  break;
+            case '\r': out.write("\\r");  break;
+            case '\t': out.write("\\t");  break;
+            default:
+                out.write("\\u");
+                out.write(JsonTemplate.HEX_DIGITS[(c >> 12) & 0xf]);
+                out.write(JsonTemplate.HEX_DIGITS[(c >> 8) & 0xf]);
+                out.write(JsonTemplate.HEX_DIGITS[(c >> 4) & 0xf]);
+                out.write(JsonTemplate.HEX_DIGITS[c & 0xf]);
+                break;
+            }
+        }
+        if (len > start) out.write(str, start, len - start);
+
+        out.write('"');
+    }
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * {@link #profile() Profiles} the output operation that was just completed (iff the {@link OutputProfiler} is
+     * enabled).
+     */
+    private JsonTemplate
+    profiled() {
+        if (OutputProfiler.isEnabled()) this.profile();
+        return this;
+    }
+
+    private void
+    string(CharSequence s, PrintWriter out) { JsonTemplate.writeString(s, out, this.escapeNonAscii); }
+
+    /**
+     * Formats the <var>value</var> into the {@link #digits} buffer, and writes it, without creating any objects.
+     */
+    private void
+    number(long value, PrintWriter out) {
+
+        if (value == Long.MIN_VALUE) {
+            out.write("-9223372036854775808");
+            return;
+        }
+
+        char[] buf = this.digits;
+        int    pos = buf.length;
+
+        boolean negative = value < 0;
+        if (negative) value = -value;
+
+        do {
+            buf[--pos] = (char) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+
+        if (negative) buf[--pos] = '-';
+
+        out.write(buf, pos, buf.length - pos);
+    }
+
+    private void
+    beforeValue() {
+
+        if (this.afterName) {
+            this.afterName = false;
+            return;
+        }
+
+        if (this.validating) {
+            if (this.kinds[this.depth] == JsonTemplate.OBJECT) {
+                throw new IllegalStateException("Value in object without preceding name");
+            }
+            if (this.depth == 0 && this.hasElements[0]) {
+                throw new IllegalStateException("More than one top-level value");
+            }
+        }
+
+        if (this.hasElements[this.depth]) {
+            if (this.depth > 0) this.out().write(',');
+        } else {
+            this.hasElements[this.depth] = true;
+        }
+    }
+
+    private void
+    push(byte kind) {
+
+        if (++this.depth == this.kinds.length) {
+            this.kinds       = Arrays.copyOf(this.kinds, 2 * this.depth);
+            this.hasElements = Arrays.copyOf(this.hasElements, 2 * this.depth);
+        }
+
+        this.kinds[this.depth]       = kind;
+        this.hasElements[this.depth] = false;
+    }
+
+    private void
+    pop(byte kind) {
+
+        // Even when not validating, because otherwise the next operation would fail with an obscure
+        // ArrayIndexOutOfBoundsException.
+        if (this.depth == 0 || (this.validating && this.kinds[this.depth] != kind)) {
+            throw new IllegalStateException(kind == JsonTemplate.OBJECT ? "Not in an object" : "Not in an array");
+        }
+        if (this.validating && this.afterName) throw new IllegalStateException("Name without value");
+
+        this.depth--;
+    }
+
+    /**
+     * In validating mode, checks that all objects and arrays were closed.
+     */
+    @Override protected void
+    renderCompleted() {
+        if (this.validating && this.depth > 0) {
+            throw new IllegalStateException(
+                this.kinds[this.depth] == JsonTemplate.OBJECT ? "Object not closed" : "Array not closed"
+            );
+        }
+    }
+}
@@ -27,6 +27,7 @@
 package de.unkrig.notemplate;
 
 import java.io.File;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
@@ -34,11 +35,15 @@ import java.io.PrintWriter;
 import java.io.Writer;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
 
 import de.unkrig.commons.io.IoUtil;
 import de.unkrig.commons.lang.AssertionUtil;
 import de.unkrig.commons.lang.protocol.ConsumerWhichThrows;
 import de.unkrig.commons.nullanalysis.Nullable;
+import de.unkrig.notemplate.management.OutputProfiler;
+import de.unkrig.notemplate.management.RenderStatistics;
 
 /**
  * The heart of the No-Template library: Renders the templates that you define as Java&trade; classes
@@ -69,8 +74,24 @@ class NoTemplate {
 
     static { AssertionUtil.enableAssertionsForThisClass(); }
 
+    static {
+        if (Boolean.getBoolean(RenderStatistics.REGISTER_PROPERTY)) RenderStatistics.registerMBean();
+    }
+
     @Nullable private PrintWriter pw;
 
+    /**
+     * The charset that the {@link #pw} encodes with, or {@code null} if unknown.
+     */
+    @Nullable private Charset charset;
+
+    /**
+     * Counts the bytes that the {@link #pw} writes, or {@code null} if the template does not render through {@code
+     * render()}; see {@link #profile()}. Shared with the templates that this template {@link #include(Class)
+     * includes}.
+     */
+    @Nullable private CountingOutputStream cos;
+
     /**
      * Renders the given no-template (<var>templateClass</var>) to the given <var>file</var>. Silently creates any
      * missing parent directories.
@@ -92,6 +113,7 @@ class NoTemplate {
      * @param outputFile                     The file to write to (in UTF-8 encoding)
      * @param renderer                       Prints the text to its <var>subject</var> {@link PrintWriter}
      * @param createMissingParentDirectories Whether to create any missing parent directories for the <var>file</var>
+     *                                       (checked on each invocation; {@link RenderSession} caches them)
      */
     public static final <T extends NoTemplate, EX extends Exception> void
     render(
@@ -116,6 +138,7 @@ class NoTemplate {
      * @param outputFile                     The file to write to (in UTF-8 encoding)
      * @param renderer                       Prints the text to its <var>subject</var> {@link PrintWriter}
      * @param createMissingParentDirectories Whether to create any missing parent directories for the <var>file</var>
+     *                                       (checked on each invocation; {@link RenderSession} caches them)
      * @param charset                        The charset to use
      */
     public static final <T extends NoTemplate, EX extends Exception> void
@@ -136,8 +159,10 @@ class NoTemplate {
      * @param outputFile                     The file to write to (in UTF-8 encoding)
      * @param renderer                       Prints the text to its <var>subject</var> {@link PrintWriter}
      * @param createMissingParentDirectories Whether to create any missing parent directories for the <var>file</var>
+     *                                       (checked on each invocation; {@link RenderSession} caches them)
      * @param charset                        The charset to use
-     * @param quiet                          Whether to <em>not</em> report the file generation on {@code System.out}
+     * @param quiet                          Whether to <em>not</em> report the file generation through the {@link
+     *                                       #setDefaultRenderListener(RenderListener) default render listener}
      */
     public static final <T extends NoTemplate, EX extends Exception> void
     render(
@@ -149,20 +174,296 @@ class NoTemplate {
         boolean                                  quiet
     ) throws IOException, EX {
 
-        if (!quiet) System.out.println("Generating " + outputFile + "...");
+        NoTemplate.render(
+            templateClass,
+            outputFile,
+            renderer,
+            createMissingParentDirectories,
+            charset,
+            quiet ? RenderListeners.NOP : NoTemplate.defaultRenderListener
+        );
+    }
 
-        IoUtil.outputFilePrintWriter(
+    /**
+     * Renders the given no-template (<var>templateClass</var>) to the given <var>file</var>.
+     *
+     * @param <T>                            The template class
+     * @param outputFile                     The file to write to (in UTF-8 encoding)
+     * @param renderer                       Prints the text to its <var>subject</var> {@link PrintWriter}
+     * @param createMissingParentDirectories Whether to create any missing parent directories for the <var>file</var>
+     *                                       (checked on each invocation; {@link RenderSession} caches them)
+     * @param charset                        The charset to use
+     * @param listener                       Gets notified before and after the file is generated
+     */
+    public static final <T extends NoTemplate, EX extends Exception> void
+    render(
+        final Class<T>                           templateClass,
+        File                                     outputFile,
+        final ConsumerWhichThrows<? super T, EX> renderer,
+        boolean                                  createMissingParentDirectories,
+        final Charset                            charset,
+        RenderListener                           listener
+    ) throws IOException, EX {
+        NoTemplate.render(
+            templateClass,
             outputFile,
+            renderer,
+            createMissingParentDirectories,
             charset,
-            new ConsumerWhichThrows<PrintWriter, EX>() {
+            listener,
+            null
+        );
+    }
 
-                @Override public void
-                consume(PrintWriter pw) throws EX {
-                    renderer.consume(NoTemplate.newTemplate(templateClass, pw));
+    /**
+     * Renders the given no-template (<var>templateClass</var>) to the given <var>file</var>, optionally through a
+     * {@link ContentStore}.
+     *
+     * @param contentStore {@code null} means to write the <var>outputFile</var> as a regular file
+     */
+    static <T extends NoTemplate, EX extends Exception> void
+    render(
+        final Class<T>                           templateClass,
+        File                                     outputFile,
+        final ConsumerWhichThrows<? super T, EX> renderer,
+        boolean                                  createMissingParentDirectories,
+        final Charset                            charset,
+        RenderListener                           listener,
+        @Nullable ContentStore                   contentStore
+    ) throws IOException, EX {
+
+        listener.fileStarted(outputFile);
+
+        long startTime = System.nanoTime();
+
+        final boolean[] hasError  = new boolean[1];
+        final long[]    byteCount = new long[1];
+        ConsumerWhichThrows<OutputStream, EX> producer = new ConsumerWhichThrows<OutputStream, EX>() {
+
+            @Override public void
+            consume(OutputStream os) throws EX {
+                long count = NoTemplate.render(templateClass, os, charset, renderer);
+                hasError[0]  = count == -1;
+                byteCount[0] = count;
+            }
+        };
+        if (contentStore == null) {
+            IoUtil.outputFileOutputStream(outputFile, producer, createMissingParentDirectories);
+        } else {
+            if (createMissingParentDirectories) {
+                File dir = outputFile.getAbsoluteFile().getParentFile();
+                if (dir != null && !dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+                    throw new IOException("Cannot create directory \"" + dir + "\"");
                 }
-            },
-            createMissingParentDirectories
-        );
+            }
+            contentStore.write(outputFile, producer);
+        }
+        if (hasError[0]) throw new IOException("Error writing \"" + outputFile + "\"");
+
+        RenderStatistics.get().pageRendered(templateClass, System.nanoTime() - startTime, byteCount[0]);
+
+        listener.fileCompleted(outputFile, byteCount[0]);
+    }
+
+    /**
+     * Renders to the given output stream, and recycles the template and the writer chain iff {@link
+     * #setPooling(boolean) pooling} is enabled and the template class is {@link Resettable}.
+     *
+     * @return The number of bytes written to the <var>os</var>, or -1 if an I/O error occurred
+     */
+    private static <T extends NoTemplate, EX extends Exception> long
+    render(Class<T> templateClass, OutputStream os, Charset charset, ConsumerWhichThrows<? super T, EX> renderer)
+    throws EX {
+
+        if (!NoTemplate.pooling || !Resettable.class.isAssignableFrom(templateClass)) {
+            CountingOutputStream cos = new CountingOutputStream(os);
+            PrintWriter          pw  = new PrintWriter(new OutputStreamWriter(cos, charset));
+
+            T template = NoTemplate.newTemplate(templateClass, pw);
+            ((NoTemplate) template).charset = charset;
+            ((NoTemplate) template).cos     = cos;
+
+            renderer.consume(template);
+            ((NoTemplate) template).renderCompleted();
+
+            return pw.checkError() ? -1 : cos.count;
+        }
+
+        Pool pool = Pool.THREAD_POOL.get();
+
+        PoolableWriter pwr      = pool.takeWriter(charset);
+        T              template = pool.takeTemplate(templateClass, pwr);
+
+        RenderStatistics.get().cacheAccess("templatePool", pool.hit);
+
+        pwr.cos.setDelegate(os);
+        ((NoTemplate) template).charset = charset;
+        ((NoTemplate) template).cos     = pwr.cos;
+
+        boolean ok = false;
+        try {
+            renderer.consume(template);
+            ((NoTemplate) template).renderCompleted();
+            ok = !pwr.checkError();
+            return ok ? pwr.cos.count : -1;
+        } finally {
+            pwr.cos.setDelegate(null);
+
+            // A writer that saw an exception or an I/O error may have buffered chars or a sticky error flag, so
+            // don't recycle it.
+            if (ok) pool.writers.put(charset, pwr);
+
+            ((Resettable) template).reset();
+            ((NoTemplate) template).pw      = null;
+            ((NoTemplate) template).charset = null;
+            ((NoTemplate) template).cos     = null;
+            pool.templates.put(templateClass, template);
+        }
+    }
+
+    /**
+     * Enables or disables the recycling of template instances and their writer/encoder chains across {@code
+     * render()} invocations. Only template classes that implement {@link Resettable} are pooled; instances are kept
+     * per thread and per template class, so the rendering of many small documents of the same type avoids nearly all
+     * of the per-file object setup.
+     * <p>
+     *   By default, pooling is <em>disabled</em>.
+     * </p>
+     */
+    public static void
+    setPooling(boolean value) { NoTemplate.pooling = value; }
+
+    private static volatile boolean pooling;
+
+    /**
+     * The "reset contract" for template classes that can be recycled when {@link NoTemplate#setPooling(boolean)
+     * pooling} is enabled.
+     * <p>
+     *   Notice that all subclasses of a resettable template class are resettable, too, so a subclass that declares
+     *   fields must override {@link #reset()} (and invoke {@code super.reset()}). For that reason, the abstract
+     *   template base classes of this library do not implement this interface; instead, each concrete template
+     *   class opts in, e.g. "{@code class MyPage extends AbstractRightFrameHtml implements NoTemplate.Resettable}"
+     *   ({@link HtmlTemplate#reset()} already implements the method).
+     * </p>
+     */
+    public
+    interface Resettable {
+
+        /**
+         * Restores the state that the template had right after its instantiation. Is invoked after each {@code
+         * render()} (and before the instance is handed out again).
+         */
+        void reset();
+    }
+
+    /**
+     * The per-thread pool of template instances and writer chains.
+     */
+    private static final
+    class Pool {
+
+        static final ThreadLocal<Pool> THREAD_POOL = new ThreadLocal<Pool>() {
+            @Override protected Pool initialValue() { return new Pool(); }
+        };
+
+        // Elements are removed while they are in use, so that nested renderings don't share them.
+        final Map<Class<?>, NoTemplate>    templates = new HashMap<Class<?>, NoTemplate>();
+        final Map<Charset, PoolableWriter> writers   = new HashMap<Charset, PoolableWriter>();
+
+        // Whether the last "takeTemplate()" found a pooled instance.
+        boolean hit;
+
+        PoolableWriter
+        takeWriter(Charset charset) {
+            PoolableWriter result = this.writers.remove(charset);
+            return result != null ? result : new PoolableWriter(new CountingOutputStream(null), charset);
+        }
+
+        <T extends NoTemplate> T
+        takeTemplate(Class<T> templateClass, PrintWriter pw) {
+
+            NoTemplate result = this.templates.remove(templateClass);
+            if (!(this.hit = result != null)) return NoTemplate.newTemplate(templateClass, pw);
+
+            result.pw = pw;
+            return templateClass.cast(result);
+        }
+    }
+
+    /**
+     * A {@link PrintWriter} on top of an {@link OutputStreamWriter} (which holds the charset encoder) on top of a
+     * {@link CountingOutputStream} with an exchangeable delegate.
+     */
+    private static final
+    class PoolableWriter extends PrintWriter {
+
+        final CountingOutputStream cos;
+
+        PoolableWriter(CountingOutputStream cos, Charset charset) {
+            super(new OutputStreamWriter(cos, charset));
+            this.cos = cos;
+        }
+    }
+
+    /**
+     * Configures the {@link RenderListener} that is notified by the "non-quiet" {@code render()} methods (and by a
+     * {@link RenderSession#RenderSession() default render session}). The default is a {@link
+     * RenderListeners#perFile(java.io.PrintStream) listener} that prints "{@code Generating }<var>file</var>{@code
+     * ...}" on {@code System.out} for each and every file, as before.
+     * <p>
+     *   For large runs, a {@link RenderListeners#progress(java.io.PrintStream, long) progress reporter} is the better
+     *   choice; it prints at most one line per interval, and a final line when a {@link RenderSession#completed()
+     *   session completes}. Because the default listener is shared by all callers, a progress reporter should only be
+     *   configured here if all renders go through {@link RenderSession}s.
+     * </p>
+     */
+    public static void
+    setDefaultRenderListener(RenderListener value) { NoTemplate.defaultRenderListener = value; }
+
+    /**
+     * @see #setDefaultRenderListener(RenderListener)
+     */
+    public static RenderListener
+    getDefaultRenderListener() { return NoTemplate.defaultRenderListener; }
+
+    private static volatile RenderListener
+    defaultRenderListener = RenderListeners.perFile(System.out);
+
+    /**
+     * Counts the bytes on their way to the delegate.
+     */
+    private static
+    class CountingOutputStream extends FilterOutputStream {
+
+        long count;
+
+        /**
+         * The value of {@link #count} when the output was last {@link NoTemplate#profile() profiled}; kept here
+         * (rather than in the template) so that an including template and its included templates never attribute
+         * the same bytes twice.
+         */
+        long profiledCount;
+
+        CountingOutputStream(@Nullable OutputStream delegate) { super(delegate); }
+
+        void
+        setDelegate(@Nullable OutputStream delegate) {
+            this.out           = delegate;
+            this.count         = 0;
+            this.profiledCount = 0;
+        }
+
+        @Override public void
+        write(int b) throws IOException {
+            this.out.write(b);
+            this.count++;
+        }
+
+        @Override public void
+        write(byte[] b, int off, int len) throws IOException {
+            this.out.write(b, off, len);
+            this.count += len;
+        }
     }
 
     /**
@@ -235,7 +536,7 @@ class NoTemplate {
     public static final <T extends NoTemplate> T
     newTemplate(Class<T> templateClass, OutputStream os) {
 
-        return NoTemplate.newTemplate(templateClass, new OutputStreamWriter(os));
+        return NoTemplate.newTemplate(templateClass, os, Charset.defaultCharset());
     }
 
     /**
@@ -246,17 +547,44 @@ class NoTemplate {
     public static final <T extends NoTemplate> T
     newTemplate(Class<T> templateClass, OutputStream os, Charset cs) {
 
-        return NoTemplate.newTemplate(templateClass, new OutputStreamWriter(os, cs));
+        T template = NoTemplate.newTemplate(templateClass, new OutputStreamWriter(os, cs));
+        ((NoTemplate) template).charset = cs;
+        return template;
     }
 
     /**
      * Instantiates the given template class and returns the template instance. Everything that the template
-     * instance will print, will be written to the same destination as for <i>this</i> template instance.
+     * instance will print, will be written to the same destination as for <i>this</i> template instance, and is
+     * {@link #profile() profiled} like the output of <i>this</i> template instance.
      */
     public <C extends NoTemplate> C
     include(Class<C> templateClass) {
         assert this.pw != null;
-        return NoTemplate.newTemplate(templateClass, this.pw);
+
+        // Attribute any pending output to this template's call site, before the included template starts counting.
+        if (OutputProfiler.isEnabled()) this.profile();
+
+        C template = NoTemplate.newTemplate(templateClass, this.pw);
+        ((NoTemplate) template).charset = this.charset;
+        ((NoTemplate) template).cos     = this.cos;
+        return template;
+    }
+
+    /**
+     * @return The charset that this template's output is encoded with, or {@code null} if unknown (e.g. when the
+     *         template was created with {@link #newTemplate(Class, Writer)})
+     */
+    @Nullable protected Charset
+    charset() { return this.charset; }
+
+    /**
+     * @return The writer that this template prints to; for subclasses that write character-by-character, rather than
+     *         line-by-line
+     */
+    PrintWriter
+    out() {
+        assert this.pw != null;
+        return this.pw;
     }
 
     /**
@@ -279,6 +607,8 @@ class NoTemplate {
     l() {
         assert this.pw != null;
         this.pw.println();
+
+        if (OutputProfiler.isEnabled()) this.profile();
     }
 
     /**
@@ -295,6 +625,8 @@ class NoTemplate {
     l(String line) {
         assert this.pw != null;
         this.pw.println(line);
+
+        if (OutputProfiler.isEnabled()) this.profile();
     }
 
     /**
@@ -316,6 +648,8 @@ class NoTemplate {
         assert pw != null;
 
         for (String line : lines) pw.println(line);
+
+        if (OutputProfiler.isEnabled()) this.profile();
     }
 
     /**
@@ -326,6 +660,38 @@ class NoTemplate {
 
         assert this.pw != null;
         this.pw.print(text);
+
+        if (OutputProfiler.isEnabled()) this.profile();
+    }
+
+    /**
+     * Is invoked by the {@code render()} methods after the template was rendered without an exception; the default
+     * implementation does nothing. Subclasses may override this method, e.g. to check that the document is complete.
+     */
+    protected void
+    renderCompleted() {}
+
+    /**
+     * Attributes the bytes that were written since the preceding invocation to the current call site (see {@link
+     * OutputProfiler}). Output methods invoke this after each output operation iff the profiler is enabled.
+     * <p>
+     *   Flushes the output, so that the bytes are counted <em>after</em> the encoding with the output charset. Only
+     *   templates that are rendered through {@code render()} are profiled.
+     * </p>
+     */
+    protected final void
+    profile() {
+
+        CountingOutputStream cos = this.cos;
+        if (cos == null) return;
+
+        assert this.pw != null;
+        this.pw.flush();
+
+        long n = cos.count - cos.profiledCount;
+        cos.profiledCount = cos.count;
+
+        if (n > 0) OutputProfiler.count(n);
     }
 
     /**
@@ -0,0 +1,63 @@
+
+/*
+ * No-Template - an extremely light-weight templating framework
+ *
+ * Copyright (c) 2015, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.notemplate;
+
+import java.io.File;
+
+/**
+ * Gets notified while {@link NoTemplate#render(Class, File, de.unkrig.commons.lang.protocol.ConsumerWhichThrows,
+ * boolean, java.nio.charset.Charset, RenderListener)} generates files.
+ * <p>
+ *   Implementations must be thread-safe, because multiple files may be rendered concurrently.
+ * </p>
+ *
+ * @see RenderListeners
+ */
+public
+interface RenderListener {
+
+    /**
+     * Is invoked before the generation of the <var>outputFile</var> begins.
+     */
+    void
+    fileStarted(File outputFile);
+
+    /**
+     * Is invoked after the <var>outputFile</var> was generated successfully.
+     *
+     * @param byteCount The number of bytes that were written to the <var>outputFile</var>
+     */
+    void
+    fileCompleted(File outputFile, long byteCount);
+
+    /**
+     * Is invoked after a set of files (e.g. all pages of an index, see {@link RenderSession#completed()}) was
+     * generated. The default implementation does nothing.
+     */
+    default void
+    runCompleted() {}
+}
@@ -0,0 +1,213 @@
+
+/*
+ * No-Template - an extremely light-weight templating framework
+ *
+ * Copyright (c) 2015, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.notemplate;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.unkrig.commons.lang.AssertionUtil;
+
+/**
+ * Various {@link RenderListener} implementations.
+ */
+public final
+class RenderListeners {
+
+    static { AssertionUtil.enableAssertionsForThisClass(); }
+
+    private RenderListeners() {}
+
+    /**
+     * A {@link RenderListener} that ignores all notifications.
+     */
+    public static final RenderListener NOP = new RenderListener() {
+        @Override public void fileStarted(File outputFile)                   {}
+        @Override public void fileCompleted(File outputFile, long byteCount) {}
+    };
+
+    /**
+     * @return A {@link RenderListener} that prints "{@code Generating }<var>file</var>{@code ...}" for each and every
+     *         file on the <var>out</var> stream (which is what No-Template did before version 1.0.6)
+     */
+    public static RenderListener
+    perFile(final PrintStream out) {
+
+        return new RenderListener() {
+
+            @Override public void
+            fileStarted(File outputFile) { out.println("Generating " + outputFile + "..."); }
+
+            @Override public void
+            fileCompleted(File outputFile, long byteCount) {}
+        };
+    }
+
+    /**
+     * @return A {@link ProgressReporter} that prints a progress line on the <var>out</var> stream at most once per
+     *         <var>intervalMillis</var>
+     */
+    public static ProgressReporter
+    progress(PrintStream out, long intervalMillis) { return new ProgressReporter(out, intervalMillis); }
+
+    /**
+     * A {@link RenderListener} that aggregates the notifications and prints a progress line (files and bytes done,
+     * rate and, if the expected number of files is known, the ETA) at most once per interval, and a final line when
+     * the {@link #runCompleted() run completes}. The counters and the rate relate to the current run only.
+     * <p>
+     *   The counters are lock-free, and only the thread that "wins" the next reporting interval does the printing, so
+     *   the notification methods are very cheap even when many threads render concurrently.
+     * </p>
+     */
+    public static
+    class ProgressReporter implements RenderListener {
+
+        private final PrintStream out;
+        private final long        intervalNanos;
+
+        /**
+         * The time when the first file of the current run was started, or 0 when no run is in progress.
+         */
+        private final AtomicLong startNanos = new AtomicLong();
+
+        private final AtomicLong filesDone      = new AtomicLong();
+        private final AtomicLong bytesDone      = new AtomicLong();
+        private final AtomicLong nextReportTime = new AtomicLong();
+
+        private volatile long expectedFileCount = -1;
+
+        public
+        ProgressReporter(PrintStream out, long intervalMillis) {
+            this.out           = out;
+            this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        }
+
+        /**
+         * Enables the computation of the ETA.
+         *
+         * @param value The total number of files that will be generated, or -1 if unknown
+         */
+        public void
+        setExpectedFileCount(long value) { this.expectedFileCount = value; }
+
+        /** @return The number of files that were generated so far */
+        public long
+        getFilesDone() { return this.filesDone.get(); }
+
+        /** @return The number of bytes that were generated so far */
+        public long
+        getBytesDone() { return this.bytesDone.get(); }
+
+        @Override public void
+        fileStarted(File outputFile) {
+
+            // The first file starts the run; the first progress line is printed one interval later.
+            if (this.startNanos.get() == 0) {
+                long now = System.nanoTime();
+                if (this.startNanos.compareAndSet(0, now)) this.nextReportTime.set(now + this.intervalNanos);
+            }
+        }
+
+        @Override public void
+        fileCompleted(File outputFile, long byteCount) {
+
+            this.filesDone.incrementAndGet();
+            this.bytesDone.addAndGet(byteCount);
+
+            long now  = System.nanoTime();
+            long next = this.nextReportTime.get();
+            if (now - next < 0) return;
+
+            // Only the thread that moves the reporting time forward prints the progress line.
+            if (!this.nextReportTime.compareAndSet(next, now + this.intervalNanos)) return;
+
+            this.report(now);
+        }
+
+        /**
+         * Prints the progress line unconditionally.
+         */
+        public void
+        report() { this.report(System.nanoTime()); }
+
+        /**
+         * Prints the final progress line of the current run (if any files were generated), and resets the counters
+         * for the next run.
+         */
+        @Override public synchronized void
+        runCompleted() {
+
+            if (this.startNanos.get() == 0) return;
+
+            this.report();
+
+            this.filesDone.set(0);
+            this.bytesDone.set(0);
+            this.startNanos.set(0);
+        }
+
+        private void
+        report(long now) {
+
+            long files    = this.filesDone.get();
+            long bytes    = this.bytesDone.get();
+            long expected = this.expectedFileCount;
+
+            long   start   = this.startNanos.get();
+            double seconds = Math.max(start == 0 ? 0 : now - start, 1) / 1E9;
+            double rate    = files / seconds;
+
+            StringBuilder sb = new StringBuilder("Generated ").append(files);
+            if (expected >= 0) sb.append(" of ").append(expected);
+            sb.append(" files (").append(RenderListeners.bytes(bytes)).append("), ");
+            sb.append(String.format("%.1f files/s, %s/s", rate, RenderListeners.bytes((long) (bytes / seconds))));
+            if (expected > files && rate > 0) {
+                sb.append(", ETA ").append(RenderListeners.duration((long) ((expected - files) / rate)));
+            }
+
+            this.out.println(sb);
+        }
+    }
+
+    private static String
+    bytes(long n) {
+        if (n < 1024)               return n + " B";
+        if (n < 1024 * 1024)        return String.format("%.1f KB", n / 1024.0);
+        if (n < 1024 * 1024 * 1024) return String.format("%.1f MB", n / (1024.0 * 1024));
+        return String.format("%.1f GB", n / (1024.0 * 1024 * 1024));
+    }
+
+    private static String
+    duration(long seconds) {
+        return (
+            seconds < 3600
+            ? String.format("%d:%02d", seconds / 60, seconds % 60)
+            : String.format("%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60)
+        );
+    }
+}
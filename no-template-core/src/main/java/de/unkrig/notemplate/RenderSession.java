@@ -0,0 +1,183 @@
+
+/*
+ * No-Template - an extremely light-weight templating framework
+ *
+ * Copyright (c) 2015, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.notemplate;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import de.unkrig.commons.lang.AssertionUtil;
+import de.unkrig.commons.lang.protocol.ConsumerWhichThrows;
+import de.unkrig.commons.nullanalysis.Nullable;
+import de.unkrig.notemplate.management.RenderStatistics;
+
+/**
+ * Renders many files with the same settings, e.g. all pages of a documentation site.
+ * <p>
+ *   A session remembers the directories that are known to exist, so that, when thousands of files are rendered into
+ *   a few hundred directories, the parent directory of each output file need not be checked (or created) through
+ *   the file system. The cache is thread-safe, so multiple threads can render through the same session.
+ * </p>
+ * <p>
+ *   Directories must not be deleted while the session is in use.
+ * </p>
+ */
+public
+class RenderSession {
+
+    static { AssertionUtil.enableAssertionsForThisClass(); }
+
+    private final Charset        charset;
+    private final RenderListener listener;
+
+    @Nullable private volatile ContentStore contentStore;
+
+    private final Set<File> existingDirectories = ConcurrentHashMap.newKeySet();
+
+    /**
+     * A session that renders in UTF-8 and reports through the {@link NoTemplate#getDefaultRenderListener() default
+     * render listener}.
+     */
+    public
+    RenderSession() { this(Charset.forName("UTF-8"), NoTemplate.getDefaultRenderListener()); }
+
+    public
+    RenderSession(Charset charset, RenderListener listener) {
+        this.charset  = charset;
+        this.listener = listener;
+    }
+
+    /**
+     * @return The charset that this session renders in
+     */
+    public Charset
+    getCharset() { return this.charset; }
+
+    /**
+     * @return The listener that this session notifies
+     */
+    public RenderListener
+    getListener() { return this.listener; }
+
+    /**
+     * Configures that all files of this session are written through the given <var>contentStore</var>, so that
+     * byte-identical files are stored only once (as hard links).
+     *
+     * @param contentStore {@code null} to write all files as regular files (the default)
+     */
+    public void
+    setContentStore(@Nullable ContentStore contentStore) { this.contentStore = contentStore; }
+
+    /**
+     * @return The content store that this session writes through, or {@code null}
+     */
+    @Nullable public ContentStore
+    getContentStore() { return this.contentStore; }
+
+    /**
+     * Renders the given no-template (<var>templateClass</var>) to the given <var>file</var>, and creates any missing
+     * parent directories.
+     *
+     * @param <T>      The template class
+     * @param renderer Prints the text to its <var>subject</var> template
+     * @see            NoTemplate#render(Class, File, ConsumerWhichThrows, boolean, Charset, RenderListener)
+     */
+    public <T extends NoTemplate, EX extends Exception> void
+    render(Class<T> templateClass, File outputFile, ConsumerWhichThrows<? super T, EX> renderer)
+    throws IOException, EX {
+
+        this.createParentDirectory(outputFile);
+
+        NoTemplate.render(
+            templateClass,     // templateClass
+            outputFile,        // outputFile
+            renderer,          // renderer
+            false,             // createMissingParentDirectories
+            this.charset,      // charset
+            this.listener,     // listener
+            this.contentStore  // contentStore
+        );
+    }
+
+    /**
+     * Notifies the {@link #getListener() listener} that all files of this session were rendered, e.g. so that a
+     * {@link RenderListeners.ProgressReporter progress reporter} prints its final line.
+     *
+     * @see RenderListener#runCompleted()
+     */
+    public void
+    completed() { this.listener.runCompleted(); }
+
+    /**
+     * Creates, in one pass, the parent directories of all the given files, e.g. the planned output files of a
+     * site generation.
+     */
+    public void
+    createParentDirectories(Collection<File> plannedFiles) throws IOException {
+
+        // Sort the directories so that each parent comes before its children.
+        Set<File> directories = new TreeSet<File>();
+        for (File file : plannedFiles) {
+            File dir = file.getAbsoluteFile().getParentFile();
+            if (dir != null && !this.existingDirectories.contains(dir)) directories.add(dir);
+        }
+
+        for (File dir : directories) this.createDirectory(dir);
+    }
+
+    /**
+     * Creates the parent directory of the given file, unless it is already known to exist.
+     */
+    public void
+    createParentDirectory(File file) throws IOException {
+
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir == null) return;
+
+        boolean known = this.existingDirectories.contains(dir);
+        RenderStatistics.get().cacheAccess("directoryCache", known);
+        if (!known) this.createDirectory(dir);
+    }
+
+    private void
+    createDirectory(File dir) throws IOException {
+
+        if (this.existingDirectories.contains(dir)) return;
+
+        // "mkdirs()" returns false if the directory exists (or was created concurrently).
+        if (!dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("Cannot create directory \"" + dir + "\"");
+        }
+
+        // Remember the directory and all its ancestors.
+        for (@Nullable File d = dir; d != null && this.existingDirectories.add(d); d = d.getParentFile());
+    }
+}
@@ -0,0 +1,324 @@
+
+/*
+ * No-Template - an extremely light-weight templating framework
+ *
+ * Copyright (c) 2015, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.notemplate;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import de.unkrig.commons.lang.AssertionUtil;
+import de.unkrig.commons.nullanalysis.Nullable;
+
+/**
+ * Generates a site (a directory tree of documents) in a staging directory, and then publishes it in one step, so
+ * that readers of the site never see a half-updated tree.
+ * <p>
+ *   The generations of a site live in the hidden sibling directory "{@code .}<var>name</var>{@code .generations}".
+ *   Typical use:
+ * </p>
+ * <pre>
+ *   StagedSite staged = StagedSite.stage(new File("/srv/docs/api"), StagedSite.PublishMode.SYMLINK, true);
+ *   try {
+ *       options.destination = staged.getDirectory();
+ *       ... // Render the site.
+ *       staged.publish();
+ *   } finally {
+ *       staged.discard();
+ *   }
+ *   StagedSite.deleteOldGenerations(new File("/srv/docs/api"), 2);
+ * </pre>
+ * <p>
+ *   Concurrent stagings of the same site are not supported.
+ * </p>
+ */
+public final
+class StagedSite {
+
+    static { AssertionUtil.enableAssertionsForThisClass(); }
+
+    /**
+     * How a staged site replaces the live site.
+     */
+    public
+    enum PublishMode {
+
+        /**
+         * The live site is a symbolic link to the current generation, and is replaced atomically with a link to the
+         * new generation. Readers see either the old or the new site, but never anything in between.
+         */
+        SYMLINK,
+
+        /**
+         * The live site is a directory; the live directory is renamed into the generations directory, and the new
+         * generation is renamed to the live site. Readers see either the old or the new site, but for a short moment
+         * there may be no site at all.
+         */
+        RENAME,
+    }
+
+    private final Path        site;
+    private final PublishMode mode;
+    private final Path        directory;
+    private boolean           published;
+
+    private
+    StagedSite(Path site, PublishMode mode, Path directory) {
+        this.site      = site;
+        this.mode      = mode;
+        this.directory = directory;
+    }
+
+    /**
+     * Creates a new, empty generation of the given <var>site</var>.
+     *
+     * @param site          The path that the readers use, e.g. "{@code /srv/docs/api}"
+     * @param linkUnchanged Whether to populate the new generation with hard links to the files of the live site, so
+     *                      that files which are not re-generated remain unchanged; this is safe because {@link
+     *                      NoTemplate#render(Class, File, de.unkrig.commons.lang.protocol.ConsumerWhichThrows)
+     *                      NoTemplate.render()} replaces files instead of modifying them. Where hard links are not
+     *                      supported, the files are copied
+     */
+    public static StagedSite
+    stage(File site, PublishMode mode, boolean linkUnchanged) throws IOException {
+
+        Path sitePath = site.getAbsoluteFile().toPath();
+
+        if (mode == PublishMode.SYMLINK && Files.exists(sitePath) && !Files.isSymbolicLink(sitePath)) {
+            throw new IOException(
+                "\""
+                + site
+                + "\" is not a symbolic link; publish it once with \""
+                + PublishMode.RENAME
+                + "\", or remove it"
+            );
+        }
+
+        Path generations = StagedSite.generationsDirectory(sitePath);
+        Files.createDirectories(generations);
+
+        Path directory = StagedSite.createGeneration(generations);
+
+        if (linkUnchanged && Files.isDirectory(sitePath)) {
+            StagedSite.linkTree(sitePath.toRealPath(), directory);
+        }
+
+        return new StagedSite(sitePath, mode, directory);
+    }
+
+    /**
+     * @return The directory to render the new generation of the site into
+     */
+    public File
+    getDirectory() { return this.directory.toFile(); }
+
+    /**
+     * Makes the new generation the live site.
+     */
+    public void
+    publish() throws IOException {
+
+        if (this.published) throw new IllegalStateException("Already published");
+
+        Path generations = StagedSite.generationsDirectory(this.site);
+
+        switch (this.mode) {
+
+        case SYMLINK:
+            {
+                // Create the new link under a temporary name, then rename it over the old link.
+                Path tmp = this.site.resolveSibling("." + this.site.getFileName() + ".link");
+                Files.deleteIfExists(tmp);
+                Files.createSymbolicLink(tmp, this.site.getParent().relativize(this.directory));
+                Files.move(tmp, this.site, StandardCopyOption.ATOMIC_MOVE);
+            }
+            break;
+
+        case RENAME:
+            if (Files.exists(this.site, LinkOption.NOFOLLOW_LINKS)) {
+
+                // Retire the live site as a (newer) generation, so that it is subject to "deleteOldGenerations()".
+                Path retired = StagedSite.createGeneration(generations);
+                Files.delete(retired);
+                Files.move(this.site, retired, StandardCopyOption.ATOMIC_MOVE);
+            }
+            Files.move(this.directory, this.site, StandardCopyOption.ATOMIC_MOVE);
+            break;
+        }
+
+        this.published = true;
+    }
+
+    /**
+     * Deletes the new generation, unless it was {@link #publish() published}. Notice that a generation that was
+     * published with {@link PublishMode#SYMLINK} stays in place until it is {@link #deleteOldGenerations(File, int)
+     * deleted as an old generation}.
+     */
+    public void
+    discard() throws IOException {
+        if (!this.published) StagedSite.deleteTree(this.directory);
+    }
+
+    /**
+     * Deletes all but the <var>keep</var> most recent generations of the given <var>site</var>; the live
+     * generation is never deleted.
+     *
+     * @return The number of generations deleted
+     */
+    public static int
+    deleteOldGenerations(File site, int keep) throws IOException {
+
+        Path sitePath    = site.getAbsoluteFile().toPath();
+        Path generations = StagedSite.generationsDirectory(sitePath);
+        if (!Files.isDirectory(generations)) return 0;
+
+        @Nullable Path live = Files.isSymbolicLink(sitePath) && Files.exists(sitePath) ? sitePath.toRealPath() : null;
+
+        List<Path> candidates = new ArrayList<Path>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(generations)) {
+            for (Path p : ds) {
+                if (StagedSite.generationNumber(p) == -1) continue;
+                if (live != null && p.toRealPath().equals(live)) continue;
+                candidates.add(p);
+            }
+        }
+
+        // Oldest first.
+        Collections.sort(candidates);
+
+        int result = 0;
+        for (int i = 0; i < candidates.size() - keep; i++) {
+            StagedSite.deleteTree(candidates.get(i));
+            result++;
+        }
+
+        return result;
+    }
+
+    private static Path
+    generationsDirectory(Path site) {
+        return site.resolveSibling("." + site.getFileName() + ".generations");
+    }
+
+    /**
+     * Creates a new, empty directory in the <var>generations</var> directory, named with the next generation number.
+     */
+    private static Path
+    createGeneration(Path generations) throws IOException {
+
+        long max = 0;
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(generations)) {
+            for (Path p : ds) max = Math.max(max, StagedSite.generationNumber(p));
+        }
+
+        return Files.createDirectory(generations.resolve(String.format("%08d", max + 1)));
+    }
+
+    /**
+     * @return The number of the given generation directory, or -1 if the name is not a generation number
+     */
+    private static long
+    generationNumber(Path generation) {
+
+        String name = generation.getFileName().toString();
+        if (name.length() != 8) return -1;
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) < '0' || name.charAt(i) > '9') return -1;
+        }
+
+        return Long.parseLong(name);
+    }
+
+    /**
+     * Replicates the <var>from</var> directory tree as the <var>to</var> directory tree, where the files are hard
+     * links to the original files (or copies, where hard links are not supported).
+     */
+    private static void
+    linkTree(Path from, Path to) throws IOException {
+
+        Files.walkFileTree(from, new SimpleFileVisitor<Path>() {
+
+            private boolean canLink = true;
+
+            @Override public FileVisitResult
+            preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Files.createDirectories(to.resolve(from.relativize(dir).toString()));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override public FileVisitResult
+            visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+
+                Path target = to.resolve(from.relativize(file).toString());
+
+                if (this.canLink) {
+                    try {
+                        Files.createLink(target, file);
+                        return FileVisitResult.CONTINUE;
+                    } catch (UnsupportedOperationException | FileSystemException e) {
+                        this.canLink = false;
+                    }
+                }
+
+                Files.copy(file, target, StandardCopyOption.COPY_ATTRIBUTES);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static void
+    deleteTree(Path root) throws IOException {
+
+        if (!Files.exists(root)) return;
+
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+
+            @Override public FileVisitResult
+            visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override public FileVisitResult
+            postVisitDirectory(Path dir, @Nullable IOException exc) throws IOException {
+                if (exc != null) throw exc;
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
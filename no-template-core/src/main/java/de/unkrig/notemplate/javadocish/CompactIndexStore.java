@@ -0,0 +1,302 @@
+
+/*
+ * No-Template - an extremely light-weight templating framework
+ *
+ * Copyright (c) 2015, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.notemplate.javadocish;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.unkrig.commons.lang.AssertionUtil;
+import de.unkrig.notemplate.javadocish.IndexPages.IndexEntry;
+
+/**
+ * A memory-efficient list of index entries, for passing to {@link IndexPages#createIndex(java.util.Collection,
+ * Options, String[])}.
+ * <p>
+ *   Instead of one object with four strings per entry, the entries are stored in parallel ("columnar") arrays:
+ * </p>
+ * <ul>
+ *   <li>
+ *     Explanations (like "{@code Static method in class com.acme.Foo}") repeat heavily, so each distinct explanation
+ *     is stored only once, and each entry holds only its number.
+ *   </li>
+ *   <li>
+ *     Links are split after their last "{@code #}" or "{@code /}"; the prefix (typically the page of the enclosing
+ *     class) is stored only once.
+ *   </li>
+ *   <li>
+ *     Optionally, the remaining strings (keys, link suffixes, short descriptions) are packed as UTF-8 byte arrays,
+ *     which saves the string objects. (Strings with lone surrogates, which UTF-8 cannot represent, are kept as
+ *     strings.)
+ *   </li>
+ * </ul>
+ * <p>
+ *   {@link #get(int)} returns a lightweight {@link IndexEntry} view; packed strings are decoded on each access.
+ * </p>
+ * <p>
+ *   This class is not thread-safe.
+ * </p>
+ */
+public final
+class CompactIndexStore extends AbstractList<IndexEntry> {
+
+    static { AssertionUtil.enableAssertionsForThisClass(); }
+
+    /**
+     * Whether strings are stored as LATIN1 byte arrays where possible (Java 9 and later), or always as {@code
+     * char[]}s (Java 8).
+     */
+    private static final boolean
+    COMPACT_STRINGS = !System.getProperty("java.specification.version", "").startsWith("1.");
+
+    private final boolean packUtf8;
+
+    private int      size;
+    private Object[] keys              = new Object[16]; // String or byte[]
+    private int[]    linkPrefixes      = new int[16];
+    private Object[] linkSuffixes      = new Object[16]; // String or byte[]
+    private int[]    explanations      = new int[16];
+    private Object[] shortDescriptions = new Object[16]; // String or byte[]
+
+    private final List<String>         linkPrefixTable  = new ArrayList<String>();
+    private final Map<String, Integer> linkPrefixIndex  = new HashMap<String, Integer>();
+    private final List<String>         explanationTable = new ArrayList<String>();
+    private final Map<String, Integer> explanationIndex = new HashMap<String, Integer>();
+
+    /**
+     * Stores the keys, link suffixes and short descriptions as strings.
+     */
+    public
+    CompactIndexStore() { this(false); }
+
+    /**
+     * @param packUtf8 Whether to store the keys, link suffixes and short descriptions as UTF-8 byte arrays, which
+     *                 saves memory, but costs a decoding on each access
+     */
+    public
+    CompactIndexStore(boolean packUtf8) { this.packUtf8 = packUtf8; }
+
+    /**
+     * Copies the data of the <var>entry</var> into this store.
+     *
+     * @return {@code true}
+     */
+    @Override public boolean
+    add(IndexEntry entry) {
+        this.add(entry.getKey(), entry.getLink(), entry.getExplanation(), entry.getShortDescription());
+        return true;
+    }
+
+    /**
+     * @see IndexPages#indexEntry(String, String, String, String)
+     */
+    public void
+    add(String key, String link, String explanation, String shortDescription) {
+
+        if (this.size == this.keys.length) {
+            int newCapacity = Math.max(16, 2 * this.size);
+            this.keys              = Arrays.copyOf(this.keys, newCapacity);
+            this.linkPrefixes      = Arrays.copyOf(this.linkPrefixes, newCapacity);
+            this.linkSuffixes      = Arrays.copyOf(this.linkSuffixes, newCapacity);
+            this.explanations      = Arrays.copyOf(this.explanations, newCapacity);
+            this.shortDescriptions = Arrays.copyOf(this.shortDescriptions, newCapacity);
+        }
+
+        int split = Math.max(link.lastIndexOf('#'), link.lastIndexOf('/')) + 1;
+
+        int i = this.size++;
+        this.keys[i]              = this.pack(key);
+        this.linkPrefixes[i]      = CompactIndexStore.dedup(
+            link.substring(0, split),
+            this.linkPrefixTable,
+            this.linkPrefixIndex
+        );
+        this.linkSuffixes[i]      = this.pack(link.substring(split));
+        this.explanations[i]      = CompactIndexStore.dedup(explanation, this.explanationTable, this.explanationIndex);
+        this.shortDescriptions[i] = this.pack(shortDescription);
+
+        this.modCount++;
+    }
+
+    @Override public IndexEntry
+    get(int index) {
+
+        if (index < 0 || index >= this.size) throw new IndexOutOfBoundsException(Integer.toString(index));
+
+        return new IndexEntry() {
+
+            @Override public String
+            getKey() { return CompactIndexStore.unpack(CompactIndexStore.this.keys[index]); }
+
+            @Override public String
+            getLink() {
+                CompactIndexStore cis = CompactIndexStore.this;
+                return (
+                    cis.linkPrefixTable.get(cis.linkPrefixes[index])
+                    + CompactIndexStore.unpack(cis.linkSuffixes[index])
+                );
+            }
+
+            @Override public String
+            getExplanation() {
+                CompactIndexStore cis = CompactIndexStore.this;
+                return cis.explanationTable.get(cis.explanations[index]);
+            }
+
+            @Override public String
+            getShortDescription() { return CompactIndexStore.unpack(CompactIndexStore.this.shortDescriptions[index]); }
+        };
+    }
+
+    @Override public int
+    size() { return this.size; }
+
+    /**
+     * Releases the unused capacity of the arrays.
+     */
+    public void
+    trimToSize() {
+        this.keys              = Arrays.copyOf(this.keys, this.size);
+        this.linkPrefixes      = Arrays.copyOf(this.linkPrefixes, this.size);
+        this.linkSuffixes      = Arrays.copyOf(this.linkSuffixes, this.size);
+        this.explanations      = Arrays.copyOf(this.explanations, this.size);
+        this.shortDescriptions = Arrays.copyOf(this.shortDescriptions, this.size);
+    }
+
+    /**
+     * @return The number of distinct link prefixes
+     */
+    public int
+    getLinkPrefixCount() { return this.linkPrefixTable.size(); }
+
+    /**
+     * @return The number of distinct explanations
+     */
+    public int
+    getExplanationCount() { return this.explanationTable.size(); }
+
+    /**
+     * Estimates the heap size of this store, assuming a 64-bit JVM with compressed references; the hash maps that
+     * are used for deduplication while adding are estimated with 48 bytes per entry.
+     * <p>
+     *   Strings are estimated with "compact strings" (one byte per character iff all characters are LATIN1) on Java 9
+     *   and later, and with two bytes per character on Java 8. (Running Java 9+ with "{@code -XX:-CompactStrings}"
+     *   is not detected, so the estimate is too low then.)
+     * </p>
+     *
+     * @return The estimated number of bytes
+     */
+    public long
+    estimateMemory() {
+
+        // Five arrays of references or ints.
+        long result = 5 * CompactIndexStore.array(4, this.keys.length);
+
+        for (int i = 0; i < this.size; i++) {
+            result += CompactIndexStore.sizeOf(this.keys[i]);
+            result += CompactIndexStore.sizeOf(this.linkSuffixes[i]);
+            result += CompactIndexStore.sizeOf(this.shortDescriptions[i]);
+        }
+
+        for (List<String> table : Arrays.asList(this.linkPrefixTable, this.explanationTable)) {
+            result += CompactIndexStore.array(4, table.size()) + 48L * table.size();
+            for (String s : table) result += CompactIndexStore.sizeOf(s);
+        }
+
+        return result;
+    }
+
+    /**
+     * Estimates the heap size of the given entries in the {@link IndexPages#indexEntry(String, String, String,
+     * String) conventional} representation (one object with four strings per entry, in an {@link ArrayList}), with
+     * the same assumptions as {@link #estimateMemory()}. Equal strings are counted only if they are distinct
+     * objects.
+     */
+    public static long
+    estimateMemory(List<? extends IndexEntry> entries) {
+
+        Map<String, Boolean> seen = new IdentityHashMap<String, Boolean>();
+
+        long result = CompactIndexStore.array(4, entries.size()) + 32L * entries.size();
+        for (IndexEntry entry : entries) {
+            for (String s : new String[] {
+                entry.getKey(), entry.getLink(), entry.getExplanation(), entry.getShortDescription()
+            }) {
+                if (seen.put(s, Boolean.TRUE) == null) result += CompactIndexStore.sizeOf(s);
+            }
+        }
+
+        return result;
+    }
+
+    private Object
+    pack(String s) { return this.packUtf8 && IndexBuilder.isUtf8Safe(s) ? s.getBytes(StandardCharsets.UTF_8) : s; }
+
+    private static String
+    unpack(Object o) { return o instanceof String ? (String) o : new String((byte[]) o, StandardCharsets.UTF_8); }
+
+    private static int
+    dedup(String s, List<String> table, Map<String, Integer> index) {
+
+        Integer result = index.get(s);
+        if (result == null) {
+            result = table.size();
+            table.add(s);
+            index.put(s, result);
+        }
+
+        return result;
+    }
+
+    private static long
+    sizeOf(Object o) {
+
+        if (o instanceof byte[]) return CompactIndexStore.array(1, ((byte[]) o).length);
+
+        // String object (24 bytes), plus its LATIN1 or UTF16 byte array (Java 9+) or its char array (Java 8).
+        String s     = (String) o;
+        int    coder = CompactIndexStore.COMPACT_STRINGS ? 1 : 2;
+        for (int i = 0; coder == 1 && i < s.length(); i++) {
+            if (s.charAt(i) > 0xff) {
+                coder = 2;
+                break;
+            }
+        }
+        return 24 + CompactIndexStore.array(coder, s.length());
+    }
+
+    /**
+     * @return The size of an array with 16 bytes header, aligned to 8 bytes
+     */
+    private static long
+    array(int elementSize, int length) { return (16L + (long) elementSize * length + 7) & ~7L; }
+}
@@ -0,0 +1,434 @@
+
+/*
+ * No-Template - an extremely light-weight templating framework
+ *
+ * Copyright (c) 2015, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.notemplate.javadocish;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import de.unkrig.commons.lang.AssertionUtil;
+import de.unkrig.commons.nullanalysis.Nullable;
+import de.unkrig.notemplate.javadocish.IndexPages.IndexEntry;
+import de.unkrig.notemplate.javadocish.IndexPagination.Bucket;
+
+/**
+ * Collects index entries incrementally and creates the index pages from them, in bounded memory.
+ * <p>
+ *   The entries are buffered in memory; whenever the buffer is full, its entries are sorted and "spilled" to a
+ *   temporary "run" file. {@link #createIndex(Options, String[])} then merges the runs and streams the entries
+ *   directly into the index page(s), so that at no time more than one run's worth of entries is held in memory.
+ * </p>
+ * <p>
+ *   The entries are ordered by their initial, and then by the optional comparator, and then in the order in which
+ *   they were {@link #add(IndexEntry) added}; thus, without a comparator, the generated pages are identical with what
+ *   {@link IndexPages#createIndex(java.util.Collection, Options, String[])} creates.
+ * </p>
+ * <p>
+ *   The run files are deleted only by {@link #close()}, so an {@link IndexBuilder} must always be closed, preferably
+ *   with a "try-with-resources" statement:
+ * </p>
+ * <pre>
+ *   try (IndexBuilder ib = new IndexBuilder()) {
+ *       for (...) ib.add(IndexPages.indexEntry(...));
+ *       ib.createIndex(options, nav1);
+ *   }
+ * </pre>
+ */
+public final
+class IndexBuilder implements Closeable {
+
+    static { AssertionUtil.enableAssertionsForThisClass(); }
+
+    /**
+     * The default number of entries that are held in memory before they are spilled to a run file.
+     */
+    public static final int DEFAULT_RUN_SIZE = 100000;
+
+    private final int              runSize;
+    @Nullable private final File   tempDirectory;
+    private final Comparator<Item> itemComparator;
+
+    private final List<Item>                       buffer  = new ArrayList<Item>();
+    private final List<Run>                        runs    = new ArrayList<Run>();
+    private final SortedMap<Character, Bucket>     buckets = new TreeMap<Character, Bucket>();
+    private long                                   size;
+
+    /**
+     * Uses the {@link #DEFAULT_RUN_SIZE}, no comparator, and the default temporary-file directory.
+     */
+    public
+    IndexBuilder() { this(IndexBuilder.DEFAULT_RUN_SIZE, null, null); }
+
+    /**
+     * @param runSize       The maximum number of entries that are held in memory
+     * @param comparator    Orders the entries within each initial; {@code null} means to keep them in the order in
+     *                      which they are added
+     * @param tempDirectory Where to create the run files; {@code null} means the default temporary-file directory
+     */
+    public
+    IndexBuilder(int runSize, @Nullable Comparator<? super IndexEntry> comparator, @Nullable File tempDirectory) {
+
+        if (runSize < 1) throw new IllegalArgumentException("runSize");
+
+        this.runSize       = runSize;
+        this.tempDirectory = tempDirectory;
+
+        Comparator<Item> ic = Comparator.comparingInt(item -> item.initial);
+        if (comparator != null) ic = ic.thenComparing((item1, item2) -> comparator.compare(item1.entry, item2.entry));
+        this.itemComparator = ic.thenComparingLong(item -> item.sequenceNumber);
+    }
+
+    /**
+     * Adds one entry; may spill the buffered entries to a run file.
+     */
+    public void
+    add(IndexEntry entry) throws IOException {
+
+        Item item = new Item(IndexPages.initial(entry), this.size++, entry);
+
+        Bucket bucket = this.buckets.get(item.initial);
+        if (bucket == null) this.buckets.put(item.initial, (bucket = new Bucket(item.initial)));
+        bucket.add(entry);
+        this.buffer.add(item);
+
+        if (this.buffer.size() >= this.runSize) this.spill();
+    }
+
+    /**
+     * Adds all the given <var>entries</var>.
+     */
+    public void
+    addAll(Iterable<? extends IndexEntry> entries) throws IOException {
+        for (IndexEntry entry : entries) this.add(entry);
+    }
+
+    /**
+     * @return The number of entries that were added
+     */
+    public long
+    size() { return this.size; }
+
+    /**
+     * @return The number of run files that were created so far
+     */
+    public int
+    getRunCount() { return this.runs.size(); }
+
+    /**
+     * Creates a single-index file, or a set of initial-based index files, depending on the {@link
+     * Options#splitIndex} flag, from all entries that were added.
+     *
+     * @see IndexPages#createIndex(java.util.Collection, Options, String[])
+     */
+    public void
+    createIndex(Options options, String[] nav1) throws IOException {
+
+        // Optimization for the common case that all entries fit into memory.
+        if (this.runs.isEmpty()) {
+            this.buffer.sort(this.itemComparator);
+            IndexPages.createIndex(this.buckets(), IndexBuilder.entries(this.buffer.iterator()), options, nav1);
+            return;
+        }
+
+        this.spill();
+
+        List<RunReader> readers = new ArrayList<RunReader>();
+        try {
+            for (Run run : this.runs) readers.add(new RunReader(run));
+            IndexPages.createIndex(this.buckets(), this.merge(readers), options, nav1);
+        } finally {
+            for (RunReader reader : readers) reader.close();
+        }
+    }
+
+    private List<Bucket>
+    buckets() { return new ArrayList<Bucket>(this.buckets.values()); }
+
+    /**
+     * Deletes the run files. (They are <em>not</em> registered for deletion on JVM exit, which would leak memory in
+     * long-running processes.)
+     */
+    @Override public void
+    close() {
+        for (Run run : this.runs) run.file.delete();
+        this.runs.clear();
+        this.buffer.clear();
+    }
+
+    private void
+    spill() throws IOException {
+
+        if (this.buffer.isEmpty()) return;
+
+        this.buffer.sort(this.itemComparator);
+
+        File file = File.createTempFile("index", ".run", this.tempDirectory);
+        this.runs.add(new Run(file, this.buffer.size()));
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            for (Item item : this.buffer) {
+                out.writeChar(item.initial);
+                IndexBuilder.writeVarLong(out, item.sequenceNumber);
+                IndexBuilder.writeString(out, item.entry.getKey());
+                IndexBuilder.writeString(out, item.entry.getLink());
+                IndexBuilder.writeString(out, item.entry.getExplanation());
+                IndexBuilder.writeString(out, item.entry.getShortDescription());
+            }
+        }
+
+        this.buffer.clear();
+    }
+
+    /**
+     * @return The entries of all runs, in {@link #itemComparator} order
+     */
+    private Iterator<IndexEntry>
+    merge(List<RunReader> readers) {
+
+        PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>(
+            Math.max(1, readers.size()),
+            (r1, r2) -> {
+                Item i1 = r1.head, i2 = r2.head;
+                assert i1 != null && i2 != null;
+                return this.itemComparator.compare(i1, i2);
+            }
+        );
+        for (RunReader reader : readers) {
+            if (reader.head != null) queue.add(reader);
+        }
+
+        return new Iterator<IndexEntry>() {
+
+            @Override public boolean
+            hasNext() { return !queue.isEmpty(); }
+
+            @Override public IndexEntry
+            next() {
+
+                RunReader reader = queue.poll();
+                if (reader == null) throw new NoSuchElementException();
+
+                Item result = reader.head;
+                assert result != null;
+
+                try {
+                    reader.advance();
+                } catch (IOException ioe) {
+                    throw new UncheckedIOException(ioe);
+                }
+                if (reader.head != null) queue.add(reader);
+
+                return result.entry;
+            }
+        };
+    }
+
+    private static Iterator<IndexEntry>
+    entries(Iterator<Item> items) {
+
+        return new Iterator<IndexEntry>() {
+            @Override public boolean    hasNext() { return items.hasNext();    }
+            @Override public IndexEntry next()    { return items.next().entry; }
+        };
+    }
+
+    /**
+     * Writes an unsigned number as a sequence of 7-bit groups, least significant first.
+     */
+    private static void
+    writeVarLong(DataOutputStream out, long value) throws IOException {
+        for (; (value & ~0x7fL) != 0; value >>>= 7) out.writeByte((int) (value & 0x7f) | 0x80);
+        out.writeByte((int) value);
+    }
+
+    private static long
+    readVarLong(DataInputStream in) throws IOException {
+        long result = 0;
+        for (int shift = 0;; shift += 7) {
+            int b = in.readUnsignedByte();
+            result |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) return result;
+        }
+    }
+
+    /**
+     * Writes twice the UTF-8 length of the string as a {@link #writeVarLong(DataOutputStream, long) "var long"}, and
+     * then its UTF-8 bytes. (Unlike {@link DataOutputStream#writeUTF(String)}, this is not limited to 65535 bytes.)
+     * <p>
+     *   Iff the string contains lone surrogates (which UTF-8 cannot represent), then twice its length plus one is
+     *   written instead, and then its chars.
+     * </p>
+     */
+    private static void
+    writeString(DataOutputStream out, String s) throws IOException {
+
+        if (!IndexBuilder.isUtf8Safe(s)) {
+            IndexBuilder.writeVarLong(out, 2L * s.length() + 1);
+            out.writeChars(s);
+            return;
+        }
+
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        IndexBuilder.writeVarLong(out, 2L * bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * @return Whether the <var>s</var> contains no lone surrogates, so that its UTF-8 encoding decodes to the same
+     *         string
+     */
+    static boolean
+    isUtf8Safe(String s) {
+
+        for (int i = 0, n = s.length(); i < n; i++) {
+            char c = s.charAt(i);
+            if (!Character.isSurrogate(c)) continue;
+            if (!Character.isHighSurrogate(c) || i + 1 == n || !Character.isLowSurrogate(s.charAt(i + 1))) {
+                return false;
+            }
+            i++;
+        }
+
+        return true;
+    }
+
+    /**
+     * An index entry, together with its initial and its sequence number.
+     */
+    private static final
+    class Item {
+
+        final char       initial;
+        final long       sequenceNumber;
+        final IndexEntry entry;
+
+        Item(char initial, long sequenceNumber, IndexEntry entry) {
+            this.initial        = initial;
+            this.sequenceNumber = sequenceNumber;
+            this.entry          = entry;
+        }
+    }
+
+    /**
+     * A temporary file that holds a sorted sequence of {@link Item}s.
+     */
+    private static final
+    class Run {
+
+        final File file;
+        final int  count;
+
+        Run(File file, int count) {
+            this.file  = file;
+            this.count = count;
+        }
+    }
+
+    /**
+     * Reads the items of a {@link Run} one by one.
+     */
+    private static final
+    class RunReader implements Closeable {
+
+        private final DataInputStream in;
+        private int                   remaining;
+        private byte[]                buffer = new byte[256];
+
+        /**
+         * The next item of the run, or {@code null} when the run is exhausted.
+         */
+        @Nullable Item head;
+
+        RunReader(Run run) throws IOException {
+            this.in        = new DataInputStream(new BufferedInputStream(new FileInputStream(run.file)));
+            this.remaining = run.count;
+            this.advance();
+        }
+
+        void
+        advance() throws IOException {
+
+            if (this.remaining == 0) {
+                this.head = null;
+                return;
+            }
+            this.remaining--;
+
+            char   initial          = this.in.readChar();
+            long   sequenceNumber   = IndexBuilder.readVarLong(this.in);
+            String key              = this.readString();
+            String link             = this.readString();
+            String explanation      = this.readString();
+            String shortDescription = this.readString();
+
+            this.head = new Item(
+                initial,
+                sequenceNumber,
+                IndexPages.indexEntry(key, link, explanation, shortDescription)
+            );
+        }
+
+        @Override public void
+        close() throws IOException { this.in.close(); }
+
+        private String
+        readString() throws IOException {
+
+            long header = IndexBuilder.readVarLong(this.in);
+            if (header >>> 1 > Integer.MAX_VALUE) throw new EOFException("Corrupt run file");
+
+            int n = (int) (header >>> 1);
+            if ((header & 1) != 0) {
+                char[] chars = new char[n];
+                for (int i = 0; i < n; i++) chars[i] = this.in.readChar();
+                return new String(chars);
+            }
+
+            if (n > this.buffer.length) this.buffer = new byte[Math.max(n, 2 * this.buffer.length)];
+            this.in.readFully(this.buffer, 0, n);
+
+            return new String(this.buffer, 0, n, StandardCharsets.UTF_8);
+        }
+    }
+}
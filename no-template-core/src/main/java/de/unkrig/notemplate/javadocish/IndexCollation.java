@@ -0,0 +1,183 @@
+
+/*
+ * No-Template - an extremely light-weight templating framework
+ *
+ * Copyright (c) 2015, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.notemplate.javadocish;
+
+import java.text.CollationKey;
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import de.unkrig.commons.lang.AssertionUtil;
+import de.unkrig.commons.nullanalysis.Nullable;
+import de.unkrig.notemplate.javadocish.IndexPages.IndexEntry;
+import de.unkrig.notemplate.javadocish.IndexPagination.Bucket;
+
+/**
+ * Locale-aware ordering and grouping of index entries (see {@link Options#indexCollation}).
+ * <p>
+ *   Sorting with a {@link Collator} as a comparator costs O(<var>n</var> log <var>n</var>) collator invocations;
+ *   instead, this class computes one {@link CollationKey} per entry (in parallel), and sorts the keys (also in
+ *   parallel), which costs only <var>n</var> collator invocations.
+ * </p>
+ * <p>
+ *   The entries are grouped by the <em>primary</em> collation of their initial, so that the groups are consistent
+ *   with the ordering; e.g. for the German locale, "&auml;" is grouped with "a" (under "A"), and for the Swedish
+ *   locale, it is grouped separately (under "&Auml;"), after "z". This costs one collator invocation per distinct
+ *   initial.
+ * </p>
+ */
+public final
+class IndexCollation {
+
+    static { AssertionUtil.enableAssertionsForThisClass(); }
+
+    private final Collator collator;
+    private final Collator primaryCollator;
+
+    /**
+     * @param collator Is not modified (the collation is done with clones of it)
+     */
+    public
+    IndexCollation(Collator collator) {
+        this.collator        = (Collator) collator.clone();
+        this.primaryCollator = (Collator) collator.clone();
+        this.primaryCollator.setStrength(Collator.PRIMARY);
+    }
+
+    /**
+     * The collation of the given <var>locale</var>.
+     */
+    public static IndexCollation
+    forLocale(Locale locale) { return new IndexCollation(Collator.getInstance(locale)); }
+
+    /**
+     * @return The <var>entries</var>, ordered by their key; entries with equal keys keep their original order
+     */
+    public List<IndexEntry>
+    sort(Collection<? extends IndexEntry> entries) { return this.sort(entries, null, false); }
+
+    /**
+     * @param buckets    Receives the groups of the sorted entries
+     * @param countChars See {@link Bucket#countChars}
+     * @see              #sort(Collection)
+     */
+    List<IndexEntry>
+    sort(Collection<? extends IndexEntry> entries, @Nullable List<Bucket> buckets, boolean countChars) {
+
+        IndexEntry[] entryArray = entries.toArray(new IndexEntry[entries.size()]);
+
+        // Collators are not thread-safe, so use one clone per thread.
+        ThreadLocal<Collator> collators = ThreadLocal.withInitial(() -> (Collator) this.collator.clone());
+
+        Keyed[] keyed = new Keyed[entryArray.length];
+        IntStream.range(0, entryArray.length).parallel().forEach(i -> {
+            keyed[i] = new Keyed(collators.get().getCollationKey(entryArray[i].getKey()), i);
+        });
+
+        Arrays.parallelSort(keyed, (k1, k2) -> {
+            int diff = k1.key.compareTo(k2.key);
+            return diff != 0 ? diff : Integer.compare(k1.index, k2.index);
+        });
+
+        List<IndexEntry> result = new ArrayList<IndexEntry>(keyed.length);
+        for (Keyed k : keyed) result.add(entryArray[k.index]);
+
+        if (buckets != null) this.group(result, buckets, countChars);
+
+        return result;
+    }
+
+    /**
+     * Starts a new bucket wherever the primary collation key of the initial changes. The heading of each bucket is
+     * the upper-case variant of its "smallest" initial, e.g. "A" (and not "&Auml;") for "a", "A", "&auml;" and
+     * "&Auml;".
+     */
+    private void
+    group(List<IndexEntry> sortedEntries, List<Bucket> buckets, boolean countChars) {
+
+        Map<Character, CollationKey> initialKeys = new HashMap<Character, CollationKey>();
+        Map<Character, CollationKey> primaryKeys = new HashMap<Character, CollationKey>();
+
+        // Determine the heading of each group, and the index of its first entry.
+        List<Character> headings = new ArrayList<Character>();
+        List<Integer>   starts   = new ArrayList<Integer>();
+
+        CollationKey primaryKey = null, smallestKey = null;
+        for (int i = 0; i < sortedEntries.size(); i++) {
+
+            char initial = sortedEntries.get(i).getKey().charAt(0);
+
+            CollationKey pk = primaryKeys.get(initial);
+            if (pk == null) {
+                pk = this.primaryCollator.getCollationKey(String.valueOf(initial));
+                primaryKeys.put(initial, pk);
+            }
+
+            CollationKey ik = initialKeys.get(initial);
+            if (ik == null) {
+                ik = this.collator.getCollationKey(String.valueOf(initial));
+                initialKeys.put(initial, ik);
+            }
+
+            if (primaryKey == null || pk.compareTo(primaryKey) != 0) {
+                headings.add(initial);
+                starts.add(i);
+                primaryKey  = pk;
+                smallestKey = ik;
+            } else
+            if (smallestKey != null && ik.compareTo(smallestKey) < 0) {
+                headings.set(headings.size() - 1, initial);
+                smallestKey = ik;
+            }
+        }
+        starts.add(sortedEntries.size());
+
+        for (int i = 0; i < headings.size(); i++) {
+            Bucket bucket = new Bucket(Character.toUpperCase(headings.get(i)), countChars);
+            for (IndexEntry entry : sortedEntries.subList(starts.get(i), starts.get(i + 1))) bucket.add(entry);
+            buckets.add(bucket);
+        }
+    }
+
+    private static final
+    class Keyed {
+
+        final CollationKey key;
+        final int          index;
+
+        Keyed(CollationKey key, int index) {
+            this.key   = key;
+            this.index = index;
+        }
+    }
+}
@@ -30,22 +30,32 @@ package de.unkrig.notemplate.javadocish;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
 
 import de.unkrig.commons.lang.AssertionUtil;
 import de.unkrig.commons.lang.protocol.Consumer;
 import de.unkrig.commons.lang.protocol.ConsumerWhichThrows;
+import de.unkrig.commons.lang.protocol.Producer;
 import de.unkrig.commons.nullanalysis.Nullable;
-import de.unkrig.commons.util.collections.ElementWithContext;
-import de.unkrig.commons.util.collections.IterableUtil;
 import de.unkrig.notemplate.NoTemplate;
+import de.unkrig.notemplate.RenderSession;
+import de.unkrig.notemplate.javadocish.IndexPagination.Bucket;
+import de.unkrig.notemplate.javadocish.IndexPagination.Page;
 import de.unkrig.notemplate.javadocish.templates.AbstractRightFrameHtml;
 
 /**
@@ -72,7 +82,8 @@ class IndexPages {
 
         /**
          * The (base-directory-relative) link to the element's description, e.g. "{@code
-         * java/awt/PageAttributes.MediaType.html#field}".
+         * java/awt/PageAttributes.MediaType.html#field}". Is inserted into the page verbatim; to encode a raw URL,
+         * use {@link de.unkrig.notemplate.HtmlTemplate#escUrl(String)}.
          */
         String getLink();
 
@@ -107,14 +118,91 @@ class IndexPages {
         };
     }
 
+    /**
+     * Creates an index entry that does not hold its short description, but produces it each time it is needed. Thus
+     * the memory consumption of a large index depends on the keys, links and explanations, but not on the
+     * descriptions.
+     * <p>
+     *   Notice that the description is needed not only when the entry is rendered, but also for {@link
+     *   IndexPagination#maxChars(long) pagination by characters}, for the fingerprint of the {@link
+     *   Options#incrementalIndex incremental index}, and when an {@link IndexBuilder} spills the entry to a run file;
+     *   so the producer may be invoked several times per entry, and must return the same description each time.
+     * </p>
+     *
+     * @param shortDescription Produces the {@link IndexEntry#getShortDescription()}; {@code null} products are
+     *                         equivalent with {@code ""}
+     * @see IndexEntry
+     */
+    public static IndexEntry
+    indexEntry(String key, String link, String explanation, Producer<? extends String> shortDescription) {
+
+        return new IndexEntry() {
+
+            @Override public String getKey()         { return key;         }
+            @Override public String getLink()        { return link;        }
+            @Override public String getExplanation() { return explanation; }
+
+            @Override public String
+            getShortDescription() {
+                String result = shortDescription.produce();
+                return result != null ? result : "";
+            }
+        };
+    }
+
     /**
      * Create a single-index file, or a set of initial-based index files, depending on the {@link Options#splitIndex}
      * flag.
+     *
+     * @see IndexBuilder For very large indexes
      */
     public static void
     createIndex(Collection<IndexEntry> indexEntries, Options options, String[] nav1)
     throws IOException {
 
+        SortedIndex index = SortedIndex.of(indexEntries, options);
+
+        IndexPages.createIndex(
+            index.buckets,                                    // buckets
+            index.entries.iterator(),                         // entries
+            options,                                          // options
+            nav1                                              // nav1
+        );
+    }
+
+    /**
+     * Equivalent with {@link #createIndex(Collection, Options, String[])}; notice that all <var>indexEntries</var> are
+     * collected in memory before the first page is rendered, because they must be sorted. Combine with {@link
+     * #indexEntry(String, String, String, Producer)} to keep at least the short descriptions out of memory, or use an
+     * {@link IndexBuilder} for indexes that do not fit into memory.
+     */
+    public static void
+    createIndex(Iterator<IndexEntry> indexEntries, Options options, String[] nav1) throws IOException {
+        IndexPages.createIndex(IndexPages.list(indexEntries), options, nav1);
+    }
+
+    /**
+     * Equivalent with {@link #createIndex(Iterator, Options, String[])}.
+     */
+    public static void
+    createIndex(Stream<IndexEntry> indexEntries, Options options, String[] nav1) throws IOException {
+        IndexPages.createIndex(indexEntries.iterator(), options, nav1);
+    }
+
+    /**
+     * @param buckets The groups of the <var>entries</var>, in the order in which they are displayed
+     * @param entries The entries of all buckets, in that order
+     */
+    static void
+    createIndex(List<Bucket> buckets, Iterator<IndexEntry> entries, Options options, String[] nav1)
+    throws IOException {
+
+        RenderSession session = IndexPages.renderSession(options);
+
+        // Collect the entries for the search index while the pages are being rendered.
+        SearchIndex searchIndex = options.searchIndex ? new SearchIndex() : null;
+        if (searchIndex != null) entries = searchIndex.tee(entries);
+
         if (options.splitIndex) {
 
             // Fix up the "nav1", because the split index files live in subdirectory "./index-files".
@@ -127,20 +215,30 @@ class IndexPages {
             }
 
             IndexPages.createSplitIndex(
+                session,                                      // session
                 new File(options.destination, "index-files"), // baseDirectory
-                indexEntries,                                 // indexEntries
+                buckets,                                      // buckets
+                entries,                                      // entries
                 options,                                      // options
                 nav1                                          // nav1
             );
         } else {
 
             IndexPages.createSingleIndex(
+                session,                                         // session
                 new File(options.destination, "index-all.html"), // outputFile
-                indexEntries,                                    // indexEntries
+                buckets,                                         // buckets
+                entries,                                         // entries
                 options,                                         // options
                 nav1                                             // nav1
             );
         }
+
+        if (searchIndex != null) {
+            searchIndex.write(new File(options.destination, "search"), session);
+        }
+
+        IndexPages.completed(session, options);
     }
 
     /**
@@ -154,25 +252,66 @@ class IndexPages {
         @Nullable String[]     nav1
     ) throws IOException {
 
-        // Group all entries by their initial.
-        SortedMap<Character, Collection<IndexEntry>>
-        entriesByInitial = new TreeMap<Character, Collection<IndexEntry>>();
+        SortedIndex   index   = SortedIndex.of(indexEntries, options);
+        RenderSession session = IndexPages.renderSession(options);
 
-        for (IndexEntry entry : indexEntries) {
+        IndexPages.createSingleIndex(
+            session,                                          // session
+            outputFile,                                       // outputFile
+            index.buckets,                                    // buckets
+            index.entries.iterator(),                         // entries
+            options,                                          // options
+            nav1                                              // nav1
+        );
 
-            char initial = Character.toUpperCase(entry.getKey().charAt(0));
+        IndexPages.completed(session, options);
+    }
 
-            Collection<IndexEntry> entriesOfInitial = entriesByInitial.get(initial);
-            if (entriesOfInitial == null) {
-                entriesOfInitial = new ArrayList<IndexEntry>();
-                entriesByInitial.put(initial, entriesOfInitial);
-            }
+    /**
+     * Equivalent with {@link #createSingleIndex(File, Collection, Options, String[])}; all <var>indexEntries</var> are
+     * collected in memory.
+     *
+     * @see #createIndex(Iterator, Options, String[])
+     */
+    public static void
+    createSingleIndex(
+        File                 outputFile,
+        Iterator<IndexEntry> indexEntries,
+        Options              options,
+        @Nullable String[]   nav1
+    ) throws IOException {
+        IndexPages.createSingleIndex(outputFile, IndexPages.list(indexEntries), options, nav1);
+    }
 
-            entriesOfInitial.add(entry);
-        }
+    /**
+     * Equivalent with {@link #createSingleIndex(File, Iterator, Options, String[])}.
+     */
+    public static void
+    createSingleIndex(
+        File               outputFile,
+        Stream<IndexEntry> indexEntries,
+        Options            options,
+        @Nullable String[] nav1
+    ) throws IOException {
+        IndexPages.createSingleIndex(outputFile, indexEntries.iterator(), options, nav1);
+    }
+
+    private static void
+    createSingleIndex(
+        RenderSession        session,
+        File                 outputFile,
+        List<Bucket>         buckets,
+        Iterator<IndexEntry> entries,
+        Options              options,
+        @Nullable String[]   nav1
+    ) throws IOException {
+
+        // Be on the safe side and let the next incremental split index start from scratch.
+        IndexState.discard(new File(outputFile.getAbsoluteFile().getParentFile(), "index-files"));
 
         // Create the index file.
         IndexPages.createIndexFile(
+            session,                           // session
             outputFile,                        // outputFile
             "Index",                           // windowTitle
             options,                           // options
@@ -183,13 +322,14 @@ class IndexPages {
                 "Next Letter", null,
             },
             noTemplate -> {                    // indexNavigation
-                for (Character initial : entriesByInitial.keySet()) {
+                for (Bucket bucket : buckets) {
                     noTemplate.l(
-"      <a href=\"#" + (int) initial + "\">" + initial + "</a>"
+"      <a href=\"#" + (int) bucket.initial + "\">" + bucket.initial + "</a>"
                     );
                 }
             },
-            entriesByInitial                   // entriesByInitial
+            new Page("Index", buckets),        // page
+            entries                            // entries
         );
     }
 
@@ -204,75 +344,266 @@ class IndexPages {
         @Nullable String[]     nav1
     ) throws IOException {
 
-        // Group all entries by their initial.
-        SortedMap<Character, Collection<IndexEntry>>
-        entriesByInitial = new TreeMap<Character, Collection<IndexEntry>>();
+        SortedIndex   index   = SortedIndex.of(indexEntries, options);
+        RenderSession session = IndexPages.renderSession(options);
 
-        for (IndexEntry entry : indexEntries) {
+        IndexPages.createSplitIndex(
+            session,                                          // session
+            baseDirectory,                                    // baseDirectory
+            index.buckets,                                    // buckets
+            index.entries.iterator(),                         // entries
+            options,                                          // options
+            nav1                                              // nav1
+        );
 
-            char initial = Character.toUpperCase(entry.getKey().charAt(0));
+        IndexPages.completed(session, options);
+    }
 
-            Collection<IndexEntry> entriesOfInitial = entriesByInitial.get(initial);
-            if (entriesOfInitial == null) {
-                entriesOfInitial = new ArrayList<IndexEntry>();
-                entriesByInitial.put(initial, entriesOfInitial);
-            }
+    /**
+     * Equivalent with {@link #createSplitIndex(File, Collection, Options, String[])}; all <var>indexEntries</var> are
+     * collected in memory.
+     *
+     * @see #createIndex(Iterator, Options, String[])
+     */
+    public static void
+    createSplitIndex(
+        File                 baseDirectory,
+        Iterator<IndexEntry> indexEntries,
+        Options              options,
+        @Nullable String[]   nav1
+    ) throws IOException {
+        IndexPages.createSplitIndex(baseDirectory, IndexPages.list(indexEntries), options, nav1);
+    }
 
-            entriesOfInitial.add(entry);
+    /**
+     * Equivalent with {@link #createSplitIndex(File, Iterator, Options, String[])}.
+     */
+    public static void
+    createSplitIndex(
+        File               baseDirectory,
+        Stream<IndexEntry> indexEntries,
+        Options            options,
+        @Nullable String[] nav1
+    ) throws IOException {
+        IndexPages.createSplitIndex(baseDirectory, indexEntries.iterator(), options, nav1);
+    }
+
+    private static void
+    createSplitIndex(
+        RenderSession        session,
+        File                 baseDirectory,
+        List<Bucket>         buckets,
+        Iterator<IndexEntry> entries,
+        Options              options,
+        @Nullable String[]   nav1
+    ) throws IOException {
+
+        // Create the directory once, instead of checking it for each and every file.
+        session.createParentDirectories(Collections.singleton(new File(baseDirectory, "index-1.html")));
+
+        List<Page> pages = IndexPagination.paginate(options.indexPagination, buckets);
+
+        // The page navigation is the same on all pages, so compose it only once.
+        String[] navigation = new String[pages.size()];
+        for (int idx = 0; idx < navigation.length; idx++) {
+            navigation[idx] = (
+"      <a href=\"index-" + (idx + 1) + ".html\">" + pages.get(idx).label + "</a>"
+            );
         }
+        Consumer<NoTemplate> indexNavigation = noTemplate -> noTemplate.l(navigation);
+
+        IndexState state = null;
+        if (options.incrementalIndex) {
+            List<String> context = new ArrayList<String>();
+            Collections.addAll(
+                context,
+                options.windowTitle, options.docTitle, options.header, options.footer, options.top, options.bottom,
+                String.valueOf(options.noTimestamp), options.generator, options.htmlCharset,
+                options.documentCharset.name()
+            );
+            if (nav1 != null) Collections.addAll(context, nav1);
+            Collections.addAll(context, navigation);
+            state = IndexState.load(baseDirectory, context);
+        } else {
 
-        // Create a file for each initial.
-        int idx = 1;
-        for (
-            ElementWithContext<Entry<Character, Collection<IndexEntry>>> e
-            :
-            IterableUtil.iterableWithContext(entriesByInitial.entrySet())
-        ) {
-            Entry<Character, Collection<IndexEntry>> previousIndexPage = e.previous();
-            Entry<Character, Collection<IndexEntry>> indexEntry        = e.current();
-            Entry<Character, Collection<IndexEntry>> nextIndexPage     = e.next();
-
-            Character              initial          = indexEntry.getKey();
-            Collection<IndexEntry> entriesOfInitial = indexEntry.getValue();
-
-            IndexPages.createIndexFile(
-                new File(baseDirectory, "index-" + idx + ".html"),  // outputFile
-                initial + "-Index",                                 // windowTitle
-                options,                                            // options
-                new String[] { "../stylesheet.css" },               // stylesheetLinks
-                nav1,                                               // nav1
-                new String[] {                                      // nav2
-                    "Prev Letter", previousIndexPage == null ? null : "index-" + (idx - 1) + ".html",
-                    "Next Letter", nextIndexPage     == null ? null : "index-" + (idx + 1) + ".html",
-                },
-                noTemplate -> {                                     // indexNavigation
-                    int idx2 = 1;
-                    for (Character initial2 : entriesByInitial.keySet()) {
-                        noTemplate.l(
-"      <a href=\"index-" + idx2++ + ".html\">" + initial2 + "</a>"
-                        );
+            // This run rewrites all pages, so the state of a preceding incremental run becomes stale.
+            IndexState.discard(baseDirectory);
+        }
+
+        Executor executor = options.indexExecutor;
+        if (executor == null) {
+
+            // Create a file for each page.
+            int idx = 1;
+            for (Page page : pages) {
+
+                Iterator<IndexEntry> entriesOfPage = IndexPages.limit(entries, page.totalEntries());
+
+                // Skip the page iff it would not change.
+                if (state != null) {
+                    List<IndexEntry> tmp = IndexPages.collect(entriesOfPage);
+                    if (!state.update("index-" + idx + ".html", idx, pages.size(), page, tmp)) {
+                        idx++;
+                        continue;
                     }
-                },
-                Collections.singletonMap(initial, entriesOfInitial) // entriesByInitial
-            );
+                    entriesOfPage = tmp.iterator();
+                }
+
+                IndexPages.createSplitIndexFile(
+                    session,         // session
+                    baseDirectory,   // baseDirectory
+                    idx++,           // idx
+                    page,            // page
+                    pages.size(),    // pageCount
+                    options,         // options
+                    nav1,            // nav1
+                    indexNavigation, // indexNavigation
+                    entriesOfPage    // entries
+                );
+            }
 
-            idx++;
+            if (state != null) state.save();
+            return;
         }
+
+        // Collect the entries of each page, and render the pages concurrently. Since each pending page holds its
+        // entries in memory, at most "options.indexExecutorPages" pages are pending at any time. As soon as one page
+        // fails, no more pages are submitted, and the pages that have not yet started are skipped.
+        Semaphore                     pending = new Semaphore(Math.max(1, options.indexExecutorPages));
+        AtomicBoolean                 failed  = new AtomicBoolean();
+        List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+        try {
+            for (int i = 0; i < pages.size() && !failed.get(); i++) {
+                Page page = pages.get(i);
+                int  idx  = i + 1;
+
+                try {
+                    pending.acquire();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+
+                List<IndexEntry> entriesOfPage;
+                try {
+                    entriesOfPage = IndexPages.collect(IndexPages.limit(entries, page.totalEntries()));
+                } catch (IOException | RuntimeException e) {
+                    pending.release();
+                    throw e;
+                }
+
+                // Skip the page iff it would not change.
+                if (state != null && !state.update("index-" + idx + ".html", idx, pages.size(), page, entriesOfPage)) {
+                    pending.release();
+                    continue;
+                }
+
+                try {
+                    futures.add(CompletableFuture.runAsync(() -> {
+                        try {
+                            if (!failed.get()) {
+                                IndexPages.createSplitIndexFile(
+                                    session,                  // session
+                                    baseDirectory,            // baseDirectory
+                                    idx,                      // idx
+                                    page,                     // page
+                                    pages.size(),             // pageCount
+                                    options,                  // options
+                                    nav1,                     // nav1
+                                    indexNavigation,          // indexNavigation
+                                    entriesOfPage.iterator()  // entries
+                                );
+                            }
+                        } catch (IOException ioe) {
+                            failed.set(true);
+                            throw new UncheckedIOException(ioe);
+                        } catch (RuntimeException | Error e) {
+                            failed.set(true);
+                            throw e;
+                        } finally {
+                            pending.release();
+                        }
+                    }, executor));
+                } catch (RejectedExecutionException ree) {
+                    pending.release();
+                    throw ree;
+                }
+            }
+        } catch (IOException | RuntimeException | Error e) {
+
+            // Let the pages that have not yet started be skipped, and wait for the running pages, so that no page
+            // is still being written when this method completes abruptly.
+            failed.set(true);
+            IndexPages.awaitQuietly(futures);
+            throw e;
+        }
+
+        // Wait until all pages are rendered, and then report the first failure (if any).
+        try {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])).join();
+        } catch (CompletionException ce) {
+            Throwable cause = ce.getCause();
+            if (cause instanceof UncheckedIOException) throw ((UncheckedIOException) cause).getCause();
+            if (cause instanceof RuntimeException)     throw (RuntimeException) cause;
+            if (cause instanceof Error)                throw (Error) cause;
+            throw ce;
+        }
+
+        if (state != null) state.save();
     }
 
     /**
-     * @param nav2 Typically <code>{ "Prev Letter", "Next Letter" }</code>
+     * Creates "<var>baseDirectory</var>{@code /index-}<var>idx</var>{@code .html}".
+     *
+     * @param pageCount The total number of split index pages
+     */
+    private static void
+    createSplitIndexFile(
+        RenderSession                session,
+        File                         baseDirectory,
+        int                          idx,
+        Page                         page,
+        int                          pageCount,
+        Options                      options,
+        @Nullable String[]           nav1,
+        Consumer<? super NoTemplate> indexNavigation,
+        Iterator<IndexEntry>         entries
+    ) throws IOException {
+
+        IndexPages.createIndexFile(
+            session,                                           // session
+            new File(baseDirectory, "index-" + idx + ".html"), // outputFile
+            page.label + "-Index",                             // windowTitle
+            options,                                           // options
+            new String[] { "../stylesheet.css" },              // stylesheetLinks
+            nav1,                                              // nav1
+            new String[] {                                     // nav2
+                "Prev Letter", idx == 1         ? null : "index-" + (idx - 1) + ".html",
+                "Next Letter", idx == pageCount ? null : "index-" + (idx + 1) + ".html",
+            },
+            indexNavigation,                                   // indexNavigation
+            page,                                              // page
+            entries                                            // entries
+        );
+    }
+
+    /**
+     * @param nav2    Typically <code>{ "Prev Letter", "Next Letter" }</code>
+     * @param page    The headings of the page, and the number of entries under each
+     * @param entries The entries of the <var>page</var>
      */
     private static void
     createIndexFile(
-        File                                   outputFile,
-        String                                 windowTitle,
-        Options                                options,
-        String[]                               stylesheetLinks,
-        @Nullable String[]                     nav1,
-        @Nullable String[]                     nav2,
-        Consumer<? super NoTemplate>           indexNavigation,
-        Map<Character, Collection<IndexEntry>> entriesByInitial
+        RenderSession                session,
+        File                         outputFile,
+        String                       windowTitle,
+        Options                      options,
+        String[]                     stylesheetLinks,
+        @Nullable String[]           nav1,
+        @Nullable String[]           nav2,
+        Consumer<? super NoTemplate> indexNavigation,
+        Page                         page,
+        Iterator<IndexEntry>         entries
     ) throws IOException {
 
         String windowTitle2 = (
@@ -281,74 +612,161 @@ class IndexPages {
             : windowTitle + " (" + options.windowTitle + ")"
         );
 
-        NoTemplate.render(
-            AbstractRightFrameHtml.class,
-            outputFile,
-            new ConsumerWhichThrows<AbstractRightFrameHtml, RuntimeException>() {
-
-                @Override public void
-                consume(AbstractRightFrameHtml arfh) {
-
-                    arfh.rRightFrameHtml(
-                        windowTitle2,    // windowTitle
-                        options,         // options
-                        stylesheetLinks, // stylesheetLinks
-                        nav1,            // nav1
-                        nav2,            // nav2
-                        new String[] {   // nav3
-                            "Frames",    (
-                                options.splitIndex
-                                ? "../index.html?index-files/"
-                                : "index.html?"
-                            ) + outputFile.getName(),
-                            "No Frames", outputFile.getName(),
-                        },
-                        new String[] {   // nav4
-                            "All Classes", "allclasses-noframe.html",
-                        },
-                        null,            // nav5
-                        null,            // nav6
-                        () -> {
-
-                            arfh.l(
+        try {
+            session.render(
+                AbstractRightFrameHtml.class,
+                outputFile,
+                new ConsumerWhichThrows<AbstractRightFrameHtml, RuntimeException>() {
+
+                    @Override public void
+                    consume(AbstractRightFrameHtml arfh) {
+
+                        arfh.rRightFrameHtml(
+                            windowTitle2,    // windowTitle
+                            options,         // options
+                            stylesheetLinks, // stylesheetLinks
+                            nav1,            // nav1
+                            nav2,            // nav2
+                            new String[] {   // nav3
+                                "Frames",    (
+                                    options.splitIndex
+                                    ? "../index.html?index-files/"
+                                    : "index.html?"
+                                ) + outputFile.getName(),
+                                "No Frames", outputFile.getName(),
+                            },
+                            new String[] {   // nav4
+                                "All Classes", "allclasses-noframe.html",
+                            },
+                            null,            // nav5
+                            null,            // nav6
+                            () -> {
+
+                                arfh.l(
 "    <div class=\"contentContainer\">"
-                            );
+                                );
 
-                            // Top index navigation.
-                            indexNavigation.consume(arfh);
+                                // Top index navigation.
+                                indexNavigation.consume(arfh);
 
-                            for (Entry<Character, Collection<IndexEntry>> e : entriesByInitial.entrySet()) {
-                                Character              initial          = e.getKey();
-                                Collection<IndexEntry> entriesOfInitial = e.getValue();
+                                for (int i = 0; i < page.initials.length; i++) {
+                                    char initial = page.initials[i];
 
-                                arfh.l(
+                                    arfh.l(
 "      <a name=\"" + (int) initial + "\" />",
 "      <h2 class=\"title\">" + initial + "</h2>",
 "      <dl>"
-                                );
+                                    );
 
-                                for (IndexEntry entry : entriesOfInitial) {
-                                    arfh.l(
+                                    for (long n = page.entries[i]; n > 0; n--) {
+                                        IndexEntry entry = entries.next();
+                                        arfh.l(
 "        <dt><span class=\"strong\"><a href=\"" + entry.getLink() + "\">" + entry.getKey() + "</a></span> - " + entry.getExplanation() + "</dt>",
 "        <dd><div class=\"block\">" + entry.getShortDescription() + "</div></dd>"
+                                        );
+                                    }
+
+                                    arfh.l(
+"      </dl>"
                                     );
                                 }
 
+                                // Bottom index navigation.
+                                indexNavigation.consume(arfh);
+
                                 arfh.l(
-"      </dl>"
+"    </div"
                                 );
                             }
+                        );
+                    }
+                }
+            );
+        } catch (UncheckedIOException uioe) {
 
-                            // Bottom index navigation.
-                            indexNavigation.consume(arfh);
+            // Reading spilled entries (see "IndexBuilder") failed.
+            throw uioe.getCause();
+        }
+    }
 
-                            arfh.l(
-"    </div"
-                            );
-                        }
-                    );
-                }
+    /**
+     * @return The character by which the <var>entry</var> is grouped, i.e. the upper-case initial of its key
+     */
+    static char
+    initial(IndexEntry entry) { return Character.toUpperCase(entry.getKey().charAt(0)); }
+
+    /**
+     * Drains the <var>iterator</var>; notice that the entries must be held in memory anyway, because they must be
+     * sorted before the first one can be rendered.
+     */
+    private static List<IndexEntry>
+    list(Iterator<IndexEntry> iterator) {
+        List<IndexEntry> result = new ArrayList<IndexEntry>();
+        iterator.forEachRemaining(result::add);
+        return result;
+    }
+
+    /**
+     * Waits until all of the <var>futures</var> are done, and ignores their failures.
+     */
+    private static void
+    awaitQuietly(List<CompletableFuture<Void>> futures) {
+        for (CompletableFuture<Void> future : futures) {
+            try {
+                future.join();
+            } catch (CompletionException ce) {
+                // The caller reports its own failure instead.
             }
-        );
+        }
+    }
+
+    /**
+     * Same as {@link #list(Iterator)}, but unwraps the {@link UncheckedIOException}s that reading spilled entries
+     * (see {@link IndexBuilder}) may throw.
+     */
+    private static List<IndexEntry>
+    collect(Iterator<IndexEntry> entries) throws IOException {
+        try {
+            return IndexPages.list(entries);
+        } catch (UncheckedIOException uioe) {
+            throw uioe.getCause();
+        }
+    }
+
+    /**
+     * @return The next <var>n</var> elements of the <var>delegate</var>
+     */
+    private static Iterator<IndexEntry>
+    limit(Iterator<IndexEntry> delegate, long n) {
+
+        return new Iterator<IndexEntry>() {
+
+            long remaining = n;
+
+            @Override public boolean
+            hasNext() { return this.remaining > 0 && delegate.hasNext(); }
+
+            @Override public IndexEntry
+            next() {
+                if (!this.hasNext()) throw new NoSuchElementException();
+                this.remaining--;
+                return delegate.next();
+            }
+        };
+    }
+
+    private static RenderSession
+    renderSession(Options options) {
+        RenderSession result = options.renderSession;
+        return result != null ? result : new RenderSession();
+    }
+
+    /**
+     * Completes the <var>session</var>, unless it is the caller's {@link Options#renderSession}, which the caller
+     * completes.
+     */
+    private static void
+    completed(RenderSession session, Options options) {
+        if (session != options.renderSession) session.completed();
     }
 }
@@ -0,0 +1,238 @@
+
+/*
+ * No-Template - an extremely light-weight templating framework
+ *
+ * Copyright (c) 2015, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.notemplate.javadocish;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import de.unkrig.commons.lang.AssertionUtil;
+import de.unkrig.commons.nullanalysis.Nullable;
+import de.unkrig.notemplate.javadocish.IndexPages.IndexEntry;
+
+/**
+ * Determines how the split index is cut into pages (see {@link Options#indexPagination}); without a pagination, the
+ * split index has exactly one page per initial.
+ * <p>
+ *   With a pagination, initials with too many entries are spread over several pages (labeled e.g. "S (1/4)",
+ *   "S (2/4)", ...), and adjacent initials with few entries are merged into one page (labeled e.g. "&Auml;&ndash;
+ *   &Ouml;"), so that both the size and the number of the pages stay bounded.
+ * </p>
+ */
+public final
+class IndexPagination {
+
+    static { AssertionUtil.enableAssertionsForThisClass(); }
+
+    /**
+     * The approximate number of characters of HTML markup that is generated per index entry.
+     */
+    private static final int ENTRY_MARKUP_LENGTH = 110;
+
+    private final boolean byChars;
+    private final long    max;
+
+    private
+    IndexPagination(boolean byChars, long max) {
+        if (max < 1) throw new IllegalArgumentException("max");
+        this.byChars = byChars;
+        this.max     = max;
+    }
+
+    /**
+     * Limits each page to approximately <var>maxEntriesPerPage</var> index entries.
+     */
+    public static IndexPagination
+    maxEntries(int maxEntriesPerPage) { return new IndexPagination(false, maxEntriesPerPage); }
+
+    /**
+     * Limits each page to approximately <var>maxCharsPerPage</var> characters of index entries (excluding the page
+     * header, footer and navigation).
+     */
+    public static IndexPagination
+    maxChars(long maxCharsPerPage) { return new IndexPagination(true, maxCharsPerPage); }
+
+    /**
+     * @return Whether the <var>pagination</var> needs the {@link Bucket#chars}
+     */
+    static boolean
+    countsChars(@Nullable IndexPagination pagination) { return pagination != null && pagination.byChars; }
+
+    @Override public String
+    toString() { return (this.byChars ? "maxChars(" : "maxEntries(") + this.max + ")"; }
+
+    /**
+     * A group of adjacent index entries with the same initial, which appears under one heading.
+     */
+    static final
+    class Bucket {
+
+        /**
+         * The heading.
+         */
+        final char initial;
+
+        /**
+         * Whether to count the {@link #chars}; if {@code false}, then the short descriptions of the entries are not
+         * evaluated, which is relevant for {@link IndexPages#indexEntry(String, String, String,
+         * de.unkrig.commons.lang.protocol.Producer) lazy entries}.
+         */
+        final boolean countChars;
+
+        /**
+         * The number of entries, and their (estimated) number of characters.
+         */
+        long entries, chars;
+
+        Bucket(char initial) { this(initial, true); }
+
+        Bucket(char initial, boolean countChars) {
+            this.initial    = initial;
+            this.countChars = countChars;
+        }
+
+        void
+        add(IndexEntry entry) {
+            this.entries++;
+            if (this.countChars) this.chars += Bucket.chars(entry);
+        }
+
+        /**
+         * @return The (estimated) number of characters of the <var>entry</var> on an index page
+         */
+        static long
+        chars(IndexEntry entry) {
+            return (
+                IndexPagination.ENTRY_MARKUP_LENGTH
+                + entry.getKey().length()
+                + entry.getLink().length()
+                + entry.getExplanation().length()
+                + entry.getShortDescription().length()
+            );
+        }
+    }
+
+    /**
+     * One page of the index, which holds the next {@code entries[0] + entries[1] + ...} entries, under the headings
+     * {@code initials[0]}, {@code initials[1]}, ...
+     */
+    static final
+    class Page {
+
+        final String label;
+        final char[] initials;
+        final long[] entries;
+
+        Page(String label, char[] initials, long[] entries) {
+            this.label    = label;
+            this.initials = initials;
+            this.entries  = entries;
+        }
+
+        /**
+         * A page with all entries of the given <var>buckets</var>.
+         */
+        Page(String label, List<Bucket> buckets) {
+            this.label    = label;
+            this.initials = new char[buckets.size()];
+            this.entries  = new long[buckets.size()];
+            for (int i = 0; i < this.initials.length; i++) {
+                this.initials[i] = buckets.get(i).initial;
+                this.entries[i]  = buckets.get(i).entries;
+            }
+        }
+
+        long
+        totalEntries() {
+            long result = 0;
+            for (long n : this.entries) result += n;
+            return result;
+        }
+    }
+
+    /**
+     * @param pagination {@code null} means one page per bucket
+     * @param buckets    The buckets, in the order in which they are displayed
+     */
+    static List<Page>
+    paginate(@Nullable IndexPagination pagination, List<Bucket> buckets) {
+
+        List<Page> result = new ArrayList<Page>();
+
+        // The buckets of the merged page that is being filled.
+        List<Bucket> merged = new ArrayList<Bucket>();
+        long         weight = 0;
+
+        for (Bucket bucket : buckets) {
+
+            if (pagination == null) {
+                result.add(new Page(String.valueOf(bucket.initial), Collections.singletonList(bucket)));
+                continue;
+            }
+
+            long w = pagination.byChars ? bucket.chars : bucket.entries;
+
+            // Merge small buckets into the current page, as long as it does not become too large.
+            if (!merged.isEmpty() && weight + w <= pagination.max) {
+                merged.add(bucket);
+                weight += w;
+                continue;
+            }
+
+            if (!merged.isEmpty()) result.add(IndexPagination.mergedPage(merged));
+            merged.clear();
+
+            if (w <= pagination.max) {
+                merged.add(bucket);
+                weight = w;
+                continue;
+            }
+
+            // Spread a large bucket over several pages, with (nearly) equal numbers of entries.
+            long n = Math.min((w + pagination.max - 1) / pagination.max, bucket.entries);
+            for (long i = 0; i < n; i++) {
+                result.add(new Page(
+                    bucket.initial + " (" + (i + 1) + "/" + n + ")",
+                    new char[] { bucket.initial },
+                    new long[] { bucket.entries / n + (i < bucket.entries % n ? 1 : 0) }
+                ));
+            }
+        }
+
+        if (!merged.isEmpty()) result.add(IndexPagination.mergedPage(merged));
+
+        return result;
+    }
+
+    private static Page
+    mergedPage(List<Bucket> buckets) {
+
+        char first = buckets.get(0).initial, last = buckets.get(buckets.size() - 1).initial;
+
+        return new Page(first == last ? String.valueOf(first) : first + "\u2013" + last, buckets);
+    }
+}
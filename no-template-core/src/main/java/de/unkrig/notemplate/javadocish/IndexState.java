@@ -0,0 +1,239 @@
+
+/*
+ * No-Template - an extremely light-weight templating framework
+ *
+ * Copyright (c) 2015, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.notemplate.javadocish;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import de.unkrig.commons.lang.AssertionUtil;
+import de.unkrig.commons.nullanalysis.Nullable;
+import de.unkrig.notemplate.javadocish.IndexPages.IndexEntry;
+import de.unkrig.notemplate.javadocish.IndexPagination.Page;
+import de.unkrig.notemplate.management.RenderStatistics;
+import de.unkrig.notemplate.util.Entities;
+
+/**
+ * The fingerprints of the split index pages of the preceding run, persisted in "{@code index-files/.index-state}",
+ * so that pages whose content would not change need not be rendered again (see {@link Options#incrementalIndex}).
+ * <p>
+ *   The fingerprint of a page covers its entries, its label and number, the number of pages (which determines the
+ *   prev/next links), the page navigation, the relevant options, the version of this library (if known, i.e. when
+ *   loaded from a jar), and the {@link Entities#getLoneSurrogatePolicy() lone surrogate policy}. It does <em>not</em>
+ *   cover the generation date, so the timestamp of an unchanged page is not updated.
+ * </p>
+ * <p>
+ *   The markup itself is not fingerprinted; instead, the version in the {@link #HEADER} must be incremented whenever
+ *   the markup of the index pages changes (including the way they print non-ASCII characters and links), so that
+ *   the state of the preceding run is discarded.
+ * </p>
+ */
+final
+class IndexState {
+
+    static { AssertionUtil.enableAssertionsForThisClass(); }
+
+    private static final String FILE_NAME = ".index-state";
+    private static final String HEADER    = "# no-template index state, version 2";
+
+    private final File                directory;
+    private final byte[]              context;
+    private final Map<String, String> oldFingerprints;
+    private final Map<String, String> newFingerprints = new TreeMap<String, String>();
+
+    private
+    IndexState(File directory, byte[] context, Map<String, String> oldFingerprints) {
+        this.directory       = directory;
+        this.context         = context;
+        this.oldFingerprints = oldFingerprints;
+    }
+
+    /**
+     * Reads the state of the preceding run; if there is none (or if it is unreadable), then all pages count as
+     * changed.
+     *
+     * @param context The page-independent inputs of all pages
+     */
+    static IndexState
+    load(File directory, List<String> context) throws IOException {
+
+        MessageDigest md = IndexState.newDigest();
+        for (String s : context) IndexState.update(md, s);
+        IndexState.update(md, IndexState.class.getPackage().getImplementationVersion());
+        IndexState.update(md, Entities.getLoneSurrogatePolicy().name());
+
+        Map<String, String> fingerprints = new HashMap<String, String>();
+        try (BufferedReader br = Files.newBufferedReader(
+            new File(directory, IndexState.FILE_NAME).toPath(),
+            StandardCharsets.UTF_8
+        )) {
+            if (IndexState.HEADER.equals(br.readLine())) {
+                for (String line = br.readLine(); line != null; line = br.readLine()) {
+                    int idx = line.indexOf(' ');
+                    if (idx != -1) fingerprints.put(line.substring(0, idx), line.substring(idx + 1));
+                }
+            }
+        } catch (NoSuchFileException nsfe) {
+
+            // No state yet.
+            ;
+        }
+
+        return new IndexState(directory, md.digest(), fingerprints);
+    }
+
+    /**
+     * Deletes the state of the preceding run. Must be invoked by each run that (re-)writes index pages without
+     * maintaining the state, because afterwards the state would no longer describe the pages.
+     */
+    static void
+    discard(File directory) throws IOException {
+        Files.deleteIfExists(new File(directory, IndexState.FILE_NAME).toPath());
+    }
+
+    /**
+     * Computes and remembers the fingerprint of the given page.
+     *
+     * @return Whether the page must be rendered, i.e. its fingerprint differs from that of the preceding run, or its
+     *         file does not exist
+     */
+    boolean
+    update(String fileName, int idx, int pageCount, Page page, List<IndexEntry> entries) {
+
+        MessageDigest md = IndexState.newDigest();
+        md.update(this.context);
+        IndexState.update(md, fileName);
+        IndexState.update(md, idx + "/" + pageCount);
+        IndexState.update(md, page.label);
+        for (int i = 0; i < page.initials.length; i++) {
+            IndexState.update(md, page.initials[i] + ":" + page.entries[i]);
+        }
+        for (IndexEntry entry : entries) {
+            IndexState.update(md, entry.getKey());
+            IndexState.update(md, entry.getLink());
+            IndexState.update(md, entry.getExplanation());
+            IndexState.update(md, entry.getShortDescription());
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (byte b : md.digest()) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        String fingerprint = sb.toString();
+
+        this.newFingerprints.put(fileName, fingerprint);
+
+        boolean unchanged = (
+            fingerprint.equals(this.oldFingerprints.get(fileName))
+            && new File(this.directory, fileName).isFile()
+        );
+
+        RenderStatistics.get().cacheAccess("indexState", unchanged);
+
+        return !unchanged;
+    }
+
+    /**
+     * Deletes the pages of the preceding run that no longer exist, and persists the fingerprints of the current run.
+     */
+    void
+    save() throws IOException {
+
+        for (String fileName : this.oldFingerprints.keySet()) {
+            if (!this.newFingerprints.containsKey(fileName)) {
+                Files.deleteIfExists(new File(this.directory, fileName).toPath());
+            }
+        }
+
+        File file = new File(this.directory, IndexState.FILE_NAME);
+        File tmp  = new File(this.directory, IndexState.FILE_NAME + ".new");
+        try (Writer w = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8)) {
+            w.write(IndexState.HEADER + "\n");
+            for (Entry<String, String> e : this.newFingerprints.entrySet()) {
+                w.write(e.getKey() + " " + e.getValue() + "\n");
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Feeds the length and the UTF-8 encoding of <var>s</var> into <var>md</var>, so that different sequences of
+     * strings produce different digests. Strings with lone surrogates (which UTF-8 cannot represent) are fed as a
+     * 0xfe marker byte, their length and their chars instead.
+     */
+    private static void
+    update(MessageDigest md, @Nullable String s) {
+
+        if (s == null) {
+            md.update((byte) 0xff);
+            return;
+        }
+
+        if (!IndexBuilder.isUtf8Safe(s)) {
+            md.update((byte) 0xfe);
+            md.update((byte) (s.length() >> 24));
+            md.update((byte) (s.length() >> 16));
+            md.update((byte) (s.length() >> 8));
+            md.update((byte) s.length());
+            for (int i = 0; i < s.length(); i++) {
+                md.update((byte) (s.charAt(i) >> 8));
+                md.update((byte) s.charAt(i));
+            }
+            return;
+        }
+
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        md.update((byte) (bytes.length >> 24));
+        md.update((byte) (bytes.length >> 16));
+        md.update((byte) (bytes.length >> 8));
+        md.update((byte) bytes.length);
+        md.update(bytes);
+    }
+
+    private static MessageDigest
+    newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException nsae) {
+
+            // Every JRE must support SHA-256.
+            throw new AssertionError(nsae);
+        }
+    }
+}
@@ -29,8 +29,10 @@ package de.unkrig.notemplate.javadocish;
 import java.io.File;
 import java.nio.charset.Charset;
 import java.util.Date;
+import java.util.concurrent.Executor;
 
 import de.unkrig.commons.nullanalysis.Nullable;
+import de.unkrig.notemplate.RenderSession;
 
 /**
  * Container for the command line options of the JAVADOC doclet.
@@ -92,4 +94,52 @@ class Options {
      *      -docencoding}" command line option of the JAVADOC tool</a>
      */
     public Charset documentCharset = Charset.defaultCharset();
+
+    /**
+     * The session through which the pages are rendered, so that all pages share one cache of existing directories;
+     * {@code null} means that each {@code create...()} method uses a session of its own. The caller is responsible
+     * for {@link RenderSession#completed() completing} the given session.
+     */
+    @Nullable public RenderSession renderSession;
+
+    /**
+     * Renders the split index pages concurrently; {@code null} means to render them one after another.
+     *
+     * @see #indexExecutorPages
+     */
+    @Nullable public Executor indexExecutor;
+
+    /**
+     * The maximum number of split index pages that are rendered concurrently by the {@link #indexExecutor}. Each of
+     * these pages holds its entries in memory, so this also bounds the memory that is used when the entries come
+     * from an {@link IndexBuilder} (but see {@link #searchIndex}).
+     */
+    public int indexExecutorPages = 16;
+
+    /**
+     * How the split index is cut into pages; {@code null} means one page per initial.
+     */
+    @Nullable public IndexPagination indexPagination;
+
+    /**
+     * The locale-aware ordering and grouping of the index entries; {@code null} means to group them by the upper-case
+     * initials of their keys, and to keep them in their original order within each group. (Not applicable to an
+     * {@link IndexBuilder}.)
+     */
+    @Nullable public IndexCollation indexCollation;
+
+    /**
+     * Whether to render only those split index pages whose content changed since the preceding run; the
+     * fingerprints of the pages are kept in "{@code index-files/.index-state}". (A run without this flag deletes that
+     * file, so that the next incremental run renders all pages.)
+     */
+    public boolean incrementalIndex;
+
+    /**
+     * Whether to also create a client-side search index in "{@code ./search/}". Notice that the search index holds
+     * the keys, links and explanations of all entries in memory, even when they come from an {@link IndexBuilder}.
+     *
+     * @see SearchIndex
+     */
+    public boolean searchIndex;
 }
@@ -0,0 +1,232 @@
+
+/*
+ * No-Template - an extremely light-weight templating framework
+ *
+ * Copyright (c) 2015, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.notemplate.javadocish;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+import de.unkrig.commons.lang.AssertionUtil;
+import de.unkrig.notemplate.JsonTemplate;
+import de.unkrig.notemplate.RenderSession;
+import de.unkrig.notemplate.javadocish.IndexPages.IndexEntry;
+import de.unkrig.notemplate.util.Entities;
+
+/**
+ * A static, client-side prefix-search index over the index entries, that works without a server (even from a
+ * "{@code file:}" URL).
+ * <p>
+ *   The entries are sorted by their lower-cased key and cut into "shards" of at most {@link #DEFAULT_SHARD_SIZE}
+ *   entries, which are written as JSONP scripts:
+ * </p>
+ * <dl>
+ *   <dt>{@code search/manifest.js}</dt>
+ *   <dd>
+ *     <code>searchIndex.manifest({"entries":</code><var>n</var><code>,"shards":[</code><var>first-key-of-shard-0</var>,
+ *     ...<code>]});</code>
+ *   </dd>
+ *   <dt>{@code search/shard-}<var>i</var>{@code .js}</dt>
+ *   <dd>
+ *     <code>searchIndex.shard(</code><var>i</var><code>,[[</code><var>key</var>, <var>link</var>,
+ *     <var>explanation</var><code>],...]);</code>, where the <var>explanation</var> is plain text, i.e. without
+ *     tags and character references
+ *   </dd>
+ *   <dt>{@code search/search.js}</dt>
+ *   <dd>
+ *     The script that loads the manifest, and then only the shard(s) that can contain keys with the requested
+ *     prefix, and binary-searches them.
+ *   </dd>
+ * </dl>
+ * <p>
+ *   Usually created through {@link Options#searchIndex}, so that the entries are collected while the index pages
+ *   are rendered.
+ * </p>
+ * <p>
+ *   Notice that the key, the link and the plain-text explanation of each entry are held in memory until {@link
+ *   #write(File, RenderSession)}; thus, with an {@link IndexBuilder}, the memory consumption of the search index
+ *   grows with the number of entries, although that of the index pages does not.
+ * </p>
+ */
+public final
+class SearchIndex {
+
+    static { AssertionUtil.enableAssertionsForThisClass(); }
+
+    /**
+     * The default maximum number of entries per shard.
+     */
+    public static final int DEFAULT_SHARD_SIZE = 2000;
+
+    /**
+     * A tag, or an unterminated tag at the end of the string.
+     */
+    private static final Pattern HTML_TAG = Pattern.compile("<[^>]*>?");
+
+    private final int            shardSize;
+    private final List<String[]> entries = new ArrayList<String[]>(); // { normalizedKey, key, link, explanation }
+
+    public
+    SearchIndex() { this(SearchIndex.DEFAULT_SHARD_SIZE); }
+
+    /**
+     * @param shardSize The maximum number of entries per shard
+     */
+    public
+    SearchIndex(int shardSize) {
+        if (shardSize < 1) throw new IllegalArgumentException("shardSize");
+        this.shardSize = shardSize;
+    }
+
+    /**
+     * Adds one entry to the index.
+     */
+    public void
+    add(IndexEntry entry) {
+        String key = entry.getKey();
+        this.entries.add(new String[] {
+            key.toLowerCase(Locale.ROOT), key, entry.getLink(), entry.getExplanation()
+        });
+    }
+
+    /**
+     * @return An iterator that produces the same elements as <var>delegate</var>, and {@link #add(IndexEntry)}s each
+     *         of them to this search index
+     */
+    Iterator<IndexEntry>
+    tee(Iterator<IndexEntry> delegate) {
+
+        return new Iterator<IndexEntry>() {
+
+            @Override public boolean
+            hasNext() { return delegate.hasNext(); }
+
+            @Override public IndexEntry
+            next() {
+                IndexEntry result = delegate.next();
+                SearchIndex.this.add(result);
+                return result;
+            }
+        };
+    }
+
+    /**
+     * Writes the manifest, the shards and the script into the given <var>directory</var>.
+     *
+     * @param directory Typically "<var>destination</var>{@code /search}"; the links of the entries are relative to
+     *                  its parent directory
+     */
+    public void
+    write(File directory, RenderSession session) throws IOException {
+
+        // Sort by the normalized key; for equal keys, keep the original order.
+        this.entries.sort(Comparator.comparing(e -> e[0]));
+
+        int shardCount = (this.entries.size() + this.shardSize - 1) / this.shardSize;
+
+        session.createParentDirectories(Collections.singleton(new File(directory, "manifest.js")));
+
+        session.render(
+            SearchIndexJs.class,
+            new File(directory, "manifest.js"),
+            js -> {
+                js.setEscapeNonAscii(true);
+                js.p("searchIndex.manifest(");
+                js.beginObject();
+                js.field("entries", this.entries.size());
+                js.name("shards").beginArray();
+                for (int i = 0; i < shardCount; i++) js.value(this.entries.get(i * this.shardSize)[0]);
+                js.endArray();
+                js.endObject();
+                js.l(");");
+            }
+        );
+
+        for (int i = 0; i < shardCount; i++) {
+
+            int shard = i;
+            int from  = i * this.shardSize;
+            int to    = Math.min(from + this.shardSize, this.entries.size());
+
+            session.render(
+                SearchIndexJs.class,
+                new File(directory, "shard-" + shard + ".js"),
+                js -> {
+                    js.setEscapeNonAscii(true);
+                    js.p("searchIndex.shard(" + shard + ",");
+                    js.beginArray();
+                    for (String[] e : this.entries.subList(from, to)) {
+                        js.beginArray();
+                        js.value(e[1]);
+                        js.value(e[2]);
+                        js.value(SearchIndex.toPlainText(e[3]));
+                        js.endArray();
+                    }
+                    js.endArray();
+                    js.l(");");
+                }
+            );
+        }
+
+        StringBuilder script = new StringBuilder();
+        try (InputStream is = SearchIndex.class.getResourceAsStream("search.js")) {
+            if (is == null) throw new IOException("Resource \"search.js\" missing");
+
+            Reader r   = new InputStreamReader(is, StandardCharsets.UTF_8);
+            char[] buf = new char[4096];
+            for (int n; (n = r.read(buf)) != -1;) script.append(buf, 0, n);
+        }
+
+        // Write the script through the session, like the other files, so that the listener and the content store
+        // (if any) apply to it.
+        session.render(SearchIndexJs.class, new File(directory, "search.js"), js -> js.p(script.toString()));
+    }
+
+    /**
+     * Removes the tags from the given HTML text, and then decodes its character references. The result is
+     * displayed as text (not as HTML) by the script, so it need not be safe HTML.
+     */
+    private static String
+    toPlainText(String html) {
+        return Entities.decodeCharacterReferences(SearchIndex.HTML_TAG.matcher(html).replaceAll(""));
+    }
+
+    /**
+     * Renders the manifest and the shards of a search index.
+     */
+    public static
+    class SearchIndexJs extends JsonTemplate {}
+}
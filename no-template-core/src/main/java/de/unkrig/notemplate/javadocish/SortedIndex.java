@@ -0,0 +1,173 @@
+
+/*
+ * No-Template - an extremely light-weight templating framework
+ *
+ * Copyright (c) 2015, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.notemplate.javadocish;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import de.unkrig.commons.lang.AssertionUtil;
+import de.unkrig.notemplate.javadocish.IndexPages.IndexEntry;
+import de.unkrig.notemplate.javadocish.IndexPagination.Bucket;
+
+/**
+ * The index entries in display order, together with their {@link Bucket}s; this is what both the single index and
+ * the split index are rendered from.
+ */
+final
+class SortedIndex {
+
+    static { AssertionUtil.enableAssertionsForThisClass(); }
+
+    /**
+     * The number of entries that one task groups; smaller indexes are grouped by a single task.
+     */
+    private static final int CHUNK_SIZE = 8192;
+
+    /**
+     * The groups of the {@link #entries}, in display order.
+     */
+    final List<Bucket> buckets;
+
+    /**
+     * The entries of all {@link #buckets}, in display order.
+     */
+    final List<IndexEntry> entries;
+
+    private SortedIndex(List<Bucket> buckets, List<IndexEntry> entries) {
+        this.buckets = buckets;
+        this.entries = entries;
+    }
+
+    /**
+     * Orders and groups the entries: With an {@link Options#indexCollation}, by their collation; otherwise by the
+     * {@link IndexPages#initial(IndexEntry) initials} of their keys, and within each initial, in their original
+     * order.
+     */
+    static SortedIndex
+    of(Collection<? extends IndexEntry> indexEntries, Options options) {
+
+        boolean countChars = IndexPagination.countsChars(options.indexPagination);
+
+        IndexCollation collation = options.indexCollation;
+        if (collation != null) {
+            List<Bucket>     buckets = new ArrayList<Bucket>();
+            List<IndexEntry> entries = collation.sort(indexEntries, buckets, countChars);
+            return new SortedIndex(buckets, entries);
+        }
+
+        return SortedIndex.byInitial(indexEntries.toArray(new IndexEntry[indexEntries.size()]), countChars);
+    }
+
+    /**
+     * A parallel, stable counting sort by initial: The entries are split into chunks, and for each chunk (in
+     * parallel), the entries per initial are counted. From these counts follows the position of each chunk's entries
+     * within the result array, so that the chunks can then be scattered into that array (again in parallel) without
+     * any synchronization. Each entry's initial is computed and looked up only once.
+     */
+    private static SortedIndex
+    byInitial(IndexEntry[] entries, boolean countChars) {
+
+        int n      = entries.length;
+        int chunks = Math.max(1, (n + SortedIndex.CHUNK_SIZE - 1) / SortedIndex.CHUNK_SIZE);
+
+        // Determine the initials of the entries, and the (sorted) set of distinct initials.
+        char[]   initialOf        = new char[n];
+        BitSet[] initialsOfChunks = new BitSet[chunks];
+        IntStream.range(0, chunks).parallel().forEach(chunk -> {
+            BitSet initials = new BitSet();
+            for (int i = SortedIndex.from(chunk), to = SortedIndex.to(chunk, n); i < to; i++) {
+                initials.set(initialOf[i] = IndexPages.initial(entries[i]));
+            }
+            initialsOfChunks[chunk] = initials;
+        });
+
+        BitSet allInitials = new BitSet();
+        for (BitSet initials : initialsOfChunks) allInitials.or(initials);
+
+        char[] initials = new char[allInitials.cardinality()];
+        for (int i = 0, c = allInitials.nextSetBit(0); c != -1; c = allInitials.nextSetBit(c + 1)) {
+            initials[i++] = (char) c;
+        }
+
+        // Map each initial to the index of its bucket.
+        char[] bucketOfInitial = new char[allInitials.length()];
+        for (int b = 0; b < initials.length; b++) bucketOfInitial[initials[b]] = (char) b;
+
+        // Count the entries (and characters) per initial and chunk, and replace each entry's initial with the index
+        // of its bucket.
+        int[][]  counts = new int[chunks][initials.length];
+        long[][] chars  = new long[chunks][initials.length];
+        IntStream.range(0, chunks).parallel().forEach(chunk -> {
+            int[]  countsOfChunk = counts[chunk];
+            long[] charsOfChunk  = chars[chunk];
+            for (int i = SortedIndex.from(chunk), to = SortedIndex.to(chunk, n); i < to; i++) {
+                char b = (initialOf[i] = bucketOfInitial[initialOf[i]]);
+                countsOfChunk[b]++;
+                if (countChars) charsOfChunk[b] += Bucket.chars(entries[i]);
+            }
+        });
+
+        // Sum up the counts, and turn them into the positions where each chunk's entries of each initial go.
+        Bucket[] buckets = new Bucket[initials.length];
+        int[][]  offsets = counts;
+        for (int b = 0, offset = 0; b < buckets.length; b++) {
+            buckets[b] = new Bucket(initials[b], countChars);
+            for (int chunk = 0; chunk < chunks; chunk++) {
+                int count = counts[chunk][b];
+                offsets[chunk][b] = offset;
+                offset             += count;
+                buckets[b].entries += count;
+                buckets[b].chars   += chars[chunk][b];
+            }
+        }
+
+        // Scatter the entries into their places.
+        IndexEntry[] result = new IndexEntry[n];
+        IntStream.range(0, chunks).parallel().forEach(chunk -> {
+            int[] offsetsOfChunk = offsets[chunk];
+            for (int i = SortedIndex.from(chunk), to = SortedIndex.to(chunk, n); i < to; i++) {
+                result[offsetsOfChunk[initialOf[i]]++] = entries[i];
+            }
+        });
+
+        return new SortedIndex(
+            Collections.unmodifiableList(Arrays.asList(buckets)),
+            Collections.unmodifiableList(Arrays.asList(result))
+        );
+    }
+
+    private static int
+    from(int chunk) { return chunk * SortedIndex.CHUNK_SIZE; }
+
+    private static int
+    to(int chunk, int n) { return (int) Math.min((long) (chunk + 1) * SortedIndex.CHUNK_SIZE, n); }
+}
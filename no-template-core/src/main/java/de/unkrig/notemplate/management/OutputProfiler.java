@@ -0,0 +1,183 @@
+
+/*
+ * No-Template - an extremely light-weight templating framework
+ *
+ * Copyright (c) 2015, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.notemplate.management;
+
+import java.io.PrintStream;
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import de.unkrig.commons.lang.AssertionUtil;
+import de.unkrig.notemplate.NoTemplate;
+
+/**
+ * A debugging aid that attributes the size of the generated output to the "call sites", i.e. the template methods
+ * that invoked {@link NoTemplate#l(String...)}, {@link NoTemplate#p(String)}, the {@link
+ * de.unkrig.notemplate.JsonTemplate} methods and their brethren, e.g. "{@code
+ * de.unkrig.notemplate.javadocish.templates.AbstractRightFrameHtml.rNavBar}".
+ * <p>
+ *   Is enabled through {@link #setEnabled(boolean)}, or by setting the system property {@value #ENABLE_PROPERTY} to
+ *   {@code "true"}. While enabled, each output operation is attributed to its call site, which requires a flush of the
+ *   output and a stack walk and is thus <em>slow</em>; when disabled, the overhead is a single field read per output
+ *   operation. Apart from the flushing, the profiled templates execute the same code as unprofiled ones.
+ * </p>
+ * <p>
+ *   The sizes are counted in bytes, as they are written to the output file, i.e. <em>after</em> any entity
+ *   conversion and after the encoding with the output charset. Only templates that are rendered through {@link
+ *   NoTemplate#render(Class, java.io.File, de.unkrig.commons.lang.protocol.ConsumerWhichThrows, boolean,
+ *   java.nio.charset.Charset, de.unkrig.notemplate.RenderListener) render()} are profiled. Text that a template
+ *   writes directly to its writer is attributed to the call site of the next output operation.
+ * </p>
+ * <p>
+ *   Lambdas are attributed to the enclosing method, e.g. the body of a {@code () -> { ... }} that is declared in
+ *   method {@code rDetail()} counts for {@code rDetail}.
+ * </p>
+ */
+public final
+class OutputProfiler {
+
+    static { AssertionUtil.enableAssertionsForThisClass(); }
+
+    private OutputProfiler() {}
+
+    /**
+     * Iff this system property is set to {@code "true"}, then the profiler is enabled from the start.
+     */
+    public static final String ENABLE_PROPERTY = "de.unkrig.notemplate.profileOutput";
+
+    /**
+     * The classes that implement the output methods, and are thus never the "call site".
+     */
+    private static final Set<String> FRAMEWORK_CLASSES = new HashSet<String>();
+    static {
+        OutputProfiler.FRAMEWORK_CLASSES.add("de.unkrig.notemplate.NoTemplate");
+        OutputProfiler.FRAMEWORK_CLASSES.add("de.unkrig.notemplate.HtmlTemplate");
+        OutputProfiler.FRAMEWORK_CLASSES.add("de.unkrig.notemplate.JsonTemplate");
+        OutputProfiler.FRAMEWORK_CLASSES.add(OutputProfiler.class.getName());
+    }
+
+    private static volatile boolean enabled = Boolean.getBoolean(OutputProfiler.ENABLE_PROPERTY);
+
+    private static final ConcurrentMap<String, LongAdder> SIZES = new ConcurrentHashMap<String, LongAdder>();
+
+    /**
+     * Enables or disables the profiling. Disabling does <em>not</em> {@link #reset()} the counts.
+     */
+    public static void
+    setEnabled(boolean value) { OutputProfiler.enabled = value; }
+
+    /**
+     * @return Whether the profiler is currently enabled
+     */
+    public static boolean
+    isEnabled() { return OutputProfiler.enabled; }
+
+    /**
+     * Attributes the given number of bytes to the call site of the current output operation.
+     */
+    public static void
+    count(long bytes) {
+
+        String callSite = OutputProfiler.callSite(new Throwable().getStackTrace());
+
+        LongAdder size = OutputProfiler.SIZES.get(callSite);
+        if (size == null) {
+            LongAdder tmp = OutputProfiler.SIZES.putIfAbsent(callSite, (size = new LongAdder()));
+            if (tmp != null) size = tmp;
+        }
+        size.add(bytes);
+    }
+
+    /**
+     * Forgets all counts.
+     */
+    public static void
+    reset() { OutputProfiler.SIZES.clear(); }
+
+    /**
+     * @return The output sizes (in bytes) by call site, the biggest first
+     */
+    public static Map<String, Long>
+    getSizesByCallSite() {
+
+        List<Entry<String, Long>> entries = new ArrayList<Entry<String, Long>>();
+        for (Entry<String, LongAdder> e : OutputProfiler.SIZES.entrySet()) {
+            entries.add(new SimpleEntry<String, Long>(e.getKey(), e.getValue().sum()));
+        }
+        Collections.sort(entries, (e1, e2) -> Long.compare(e2.getValue(), e1.getValue()));
+
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        for (Entry<String, Long> e : entries) result.put(e.getKey(), e.getValue());
+        return result;
+    }
+
+    /**
+     * Prints a report of the output sizes by call site, the biggest first.
+     */
+    public static void
+    report(PrintStream out) {
+
+        Map<String, Long> sizes = OutputProfiler.getSizesByCallSite();
+
+        long total = 0;
+        for (long size : sizes.values()) total += size;
+
+        out.printf("Output size by call site (%,d bytes total):%n", total);
+        for (Entry<String, Long> e : sizes.entrySet()) {
+            out.printf("%,15d %5.1f%%  %s%n", e.getValue(), 100.0 * e.getValue() / total, e.getKey());
+        }
+    }
+
+    private static String
+    callSite(StackTraceElement[] stackTrace) {
+
+        for (StackTraceElement ste : stackTrace) {
+
+            if (OutputProfiler.FRAMEWORK_CLASSES.contains(ste.getClassName())) continue;
+
+            // Attribute lambdas ("lambda$rDetail$3") to their enclosing method.
+            String methodName = ste.getMethodName();
+            if (methodName.startsWith("lambda$")) {
+                int idx = methodName.indexOf('$', 7);
+                if (idx != -1) methodName = methodName.substring(7, idx);
+            }
+
+            return ste.getClassName() + '.' + methodName;
+        }
+
+        return "(unknown)";
+    }
+}
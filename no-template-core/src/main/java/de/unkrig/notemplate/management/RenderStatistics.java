@@ -0,0 +1,192 @@
+
+/*
+ * No-Template - an extremely light-weight templating framework
+ *
+ * Copyright (c) 2015, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.notemplate.management;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import de.unkrig.commons.lang.AssertionUtil;
+import de.unkrig.notemplate.NoTemplate;
+import de.unkrig.notemplate.util.Entities;
+import de.unkrig.notemplate.util.LatencyHistogram;
+
+/**
+ * Live statistics of all renderings in this JVM. The statistics are always collected (which is very cheap); they are
+ * exposed as an MBean named {@value #OBJECT_NAME} after {@link #registerMBean()} was invoked, or if the system
+ * property {@value #REGISTER_PROPERTY} is set to {@code "true"}.
+ */
+public final
+class RenderStatistics implements RenderStatisticsMBean {
+
+    static { AssertionUtil.enableAssertionsForThisClass(); }
+
+    /**
+     * The name under which the MBean is registered.
+     */
+    public static final String OBJECT_NAME = "de.unkrig.notemplate:type=RenderStatistics";
+
+    /**
+     * Iff this system property is set to {@code "true"}, then the MBean is registered as soon as the rendering layer
+     * is initialized.
+     */
+    public static final String REGISTER_PROPERTY = "de.unkrig.notemplate.jmx";
+
+    private static final RenderStatistics INSTANCE = new RenderStatistics();
+
+    private final LongAdder                               pagesRendered = new LongAdder();
+    private final LongAdder                               bytesWritten  = new LongAdder();
+    private final ConcurrentMap<String, LongAdder[]>      cacheAccesses = new ConcurrentHashMap<String, LongAdder[]>();
+
+    // Keyed by class name rather than by class, so that this singleton does not keep template classes (and their
+    // class loaders) reachable.
+    private final ConcurrentMap<String, LatencyHistogram> latencies = new ConcurrentHashMap<String, LatencyHistogram>();
+
+    // The entity replacements are counted by "Entities"; "reset()" only moves the base.
+    private volatile long entityReplacementsBase;
+
+    private RenderStatistics() {}
+
+    /**
+     * @return The singleton instance
+     */
+    public static RenderStatistics
+    get() { return RenderStatistics.INSTANCE; }
+
+    /**
+     * Registers the MBean with the platform MBean server; duplicate invocations are ignored.
+     *
+     * @throws IllegalStateException The MBean could not be registered
+     */
+    public static synchronized void
+    registerMBean() {
+        try {
+            MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            ObjectName  on  = new ObjectName(RenderStatistics.OBJECT_NAME);
+            if (!mbs.isRegistered(on)) mbs.registerMBean(RenderStatistics.INSTANCE, on);
+        } catch (JMException jme) {
+            throw new IllegalStateException(jme);
+        }
+    }
+
+    /**
+     * Is invoked by {@link NoTemplate} after each page was rendered successfully.
+     */
+    public void
+    pageRendered(Class<? extends NoTemplate> templateClass, long nanos, long byteCount) {
+
+        this.pagesRendered.increment();
+        this.bytesWritten.add(byteCount);
+
+        String           name = templateClass.getName();
+        LatencyHistogram h    = this.latencies.get(name);
+        if (h == null) {
+            LatencyHistogram h2 = this.latencies.putIfAbsent(name, (h = new LatencyHistogram()));
+            if (h2 != null) h = h2;
+        }
+        h.record(nanos);
+    }
+
+    /**
+     * Counts a hit or a miss of the named cache.
+     */
+    public void
+    cacheAccess(String cacheName, boolean hit) {
+
+        LongAdder[] hitsAndMisses = this.cacheAccesses.get(cacheName);
+        if (hitsAndMisses == null) {
+            LongAdder[] tmp = this.cacheAccesses.putIfAbsent(
+                cacheName,
+                (hitsAndMisses = new LongAdder[] { new LongAdder(), new LongAdder() })
+            );
+            if (tmp != null) hitsAndMisses = tmp;
+        }
+        hitsAndMisses[hit ? 0 : 1].increment();
+    }
+
+    @Override public long
+    getPagesRendered() { return this.pagesRendered.sum(); }
+
+    @Override public long
+    getBytesWritten() { return this.bytesWritten.sum(); }
+
+    @Override public long
+    getEntityReplacements() { return Entities.getReplacementCount() - this.entityReplacementsBase; }
+
+    @Override public String[]
+    getCacheHitRates() {
+
+        List<String> result = new ArrayList<String>();
+        for (Entry<String, LongAdder[]> e : new TreeMap<String, LongAdder[]>(this.cacheAccesses).entrySet()) {
+            long hits   = e.getValue()[0].sum();
+            long misses = e.getValue()[1].sum();
+            result.add(String.format(
+                "%s: %.1f%% (%d hits, %d misses)",
+                e.getKey(),
+                hits + misses == 0 ? 0.0 : 100.0 * hits / (hits + misses),
+                hits,
+                misses
+            ));
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    @Override public String[]
+    getLatencyHistograms() {
+
+        List<String> result = new ArrayList<String>();
+        for (Entry<String, LatencyHistogram> e : new TreeMap<String, LatencyHistogram>(this.latencies).entrySet()) {
+            result.add(e.getKey() + ": " + e.getValue());
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    @Override public long
+    getLatencyPercentileNanos(String templateClassName, double percentile) {
+
+        LatencyHistogram h = this.latencies.get(templateClassName);
+        return h != null && h.getCount() > 0 ? h.getValueAtPercentile(percentile) : -1;
+    }
+
+    @Override public void
+    reset() {
+        this.pagesRendered.reset();
+        this.bytesWritten.reset();
+        this.entityReplacementsBase = Entities.getReplacementCount();
+        this.cacheAccesses.clear();
+        for (LatencyHistogram h : this.latencies.values()) h.reset();
+    }
+}
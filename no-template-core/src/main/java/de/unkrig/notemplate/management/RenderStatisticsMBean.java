@@ -0,0 +1,68 @@
+
+/*
+ * No-Template - an extremely light-weight templating framework
+ *
+ * Copyright (c) 2015, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.notemplate.management;
+
+/**
+ * The JMX management interface of {@link RenderStatistics}.
+ */
+public
+interface RenderStatisticsMBean {
+
+    /** @return The number of pages (files) rendered since the last {@link #reset()} */
+    long getPagesRendered();
+
+    /** @return The number of bytes written since the last {@link #reset()} */
+    long getBytesWritten();
+
+    /**
+     * @return The number of characters that were replaced with entities or character references since the last
+     *         {@link #reset()}
+     */
+    long getEntityReplacements();
+
+    /** @return E.g. <code>{ "templatePool: 99.5% (1990 hits, 10 misses)" }</code> */
+    String[] getCacheHitRates();
+
+    /**
+     * @return One line for each template class, e.g. <code>{ "com.acme.FooHtml: count=123, mean=1.2ms, p50=1.1ms,
+     *         p90=1.5ms, p99=3.0ms, max=4.1ms" }</code>
+     */
+    String[] getLatencyHistograms();
+
+    /**
+     * @param templateClassName The fully qualified name of a template class
+     * @param percentile        0...100
+     * @return                  The rendering latency in nanoseconds, or -1 iff no page was rendered with that
+     *                          template class since the last {@link #reset()}
+     */
+    long getLatencyPercentileNanos(String templateClassName, double percentile);
+
+    /**
+     * Sets all counters to zero and clears all histograms.
+     */
+    void reset();
+}
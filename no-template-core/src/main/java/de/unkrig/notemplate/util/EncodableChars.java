@@ -0,0 +1,103 @@
+
+/*
+ * No-Template - an extremely light-weight templating framework
+ *
+ * Copyright (c) 2015, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.notemplate.util;
+
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import de.unkrig.commons.lang.AssertionUtil;
+
+/**
+ * The set of characters that a given charset can encode, as a precomputed bitmap of all 65536 UTF-16 code units
+ * (8 KB), so that the test for a character is a single array access, rather than a {@link
+ * CharsetEncoder#canEncode(char)} call.
+ *
+ * @see #forCharset(Charset)
+ */
+public final
+class EncodableChars {
+
+    static { AssertionUtil.enableAssertionsForThisClass(); }
+
+    private static final Map<Charset, EncodableChars> CACHE = new ConcurrentHashMap<Charset, EncodableChars>();
+
+    /**
+     * Bit <var>c</var> is set iff code unit <var>c</var> can be encoded; for the surrogates, iff supplementary
+     * characters can be encoded.
+     */
+    private final long[] bits = new long[1024];
+
+    private
+    EncodableChars(Charset charset) {
+
+        // The "UTF-*" charsets can encode all characters; save the 65536 "canEncode()" calls.
+        if (charset.name().startsWith("UTF-")) {
+            Arrays.fill(this.bits, -1L);
+            return;
+        }
+
+        // Some charsets support only decoding; for these, assume ASCII.
+        if (!charset.canEncode()) {
+            this.bits[0] = -1L;
+            this.bits[1] = -1L;
+            return;
+        }
+
+        CharsetEncoder encoder       = charset.newEncoder();
+        boolean        supplementary = encoder.canEncode("\uD83D\uDE00");
+
+        for (int c = 0; c < 0x10000; c++) {
+            if (Character.isSurrogate((char) c) ? supplementary : encoder.canEncode((char) c)) {
+                this.bits[c >> 6] |= 1L << c;
+            }
+        }
+    }
+
+    /**
+     * @return The (cached) set of characters that the given <var>charset</var> can encode
+     */
+    public static EncodableChars
+    forCharset(Charset charset) {
+
+        EncodableChars result = EncodableChars.CACHE.get(charset);
+        if (result == null) {
+            result = new EncodableChars(charset);
+            EncodableChars.CACHE.put(charset, result);
+        }
+        return result;
+    }
+
+    /**
+     * @return Whether the charset can encode the given code unit; for surrogates: whether the charset can encode
+     *         supplementary characters
+     */
+    public boolean
+    canEncode(char c) { return (this.bits[c >> 6] & 1L << c) != 0; }
+}
@@ -26,13 +26,15 @@
 
 package de.unkrig.notemplate.util;
 
-import java.io.InputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Properties;
+import java.util.concurrent.atomic.LongAdder;
 
 import de.unkrig.commons.lang.AssertionUtil;
+import de.unkrig.commons.nullanalysis.Nullable;
 
 /**
  * Utility functionality which deals with XML and HTML "entities".
@@ -47,6 +49,65 @@ class Entities {
 
     private Entities() {} // Make the constructor of this utility class inaccessible.
 
+    private static final LongAdder REPLACEMENT_COUNT = new LongAdder();
+
+    /**
+     * @return The number of characters that the methods of this class replaced with entities or character references
+     *         since the JVM was started
+     */
+    public static long
+    getReplacementCount() { return Entities.REPLACEMENT_COUNT.sum(); }
+
+    /**
+     * How {@link #replaceNonAsciiCharactersWithHtmlCharacterReferences(String)} and {@link
+     * #replaceNonAsciiCharactersWithNumericCharacterReferences(String)} handle "lone surrogates", i.e. UTF-16 surrogate
+     * characters that are not part of a valid surrogate pair.
+     */
+    public
+    enum LoneSurrogatePolicy {
+
+        /**
+         * Replace the lone surrogate with the "replacement character" U+FFFD (the default).
+         */
+        REPLACE,
+
+        /**
+         * Replace the lone surrogate with a numeric character reference (like "{@code &#55357;}"), which browsers
+         * typically render as garbage.
+         */
+        NUMERIC,
+
+        /**
+         * Remove the lone surrogate.
+         */
+        DROP,
+
+        /**
+         * Throw an {@link IllegalArgumentException}.
+         */
+        EXCEPTION,
+    }
+
+    private static volatile LoneSurrogatePolicy loneSurrogatePolicy = LoneSurrogatePolicy.REPLACE;
+
+    /**
+     * Configures how lone surrogates are handled; the default is {@link LoneSurrogatePolicy#REPLACE}.
+     * <p>
+     *   This is a <em>global</em> configuration: It applies to all {@link Entities} methods and all templates in
+     *   the JVM, including renders that are already in progress on other threads (e.g. with {@link
+     *   de.unkrig.notemplate.javadocish.Options#indexExecutor}). Thus it should be set once, at application start-up,
+     *   and not per render; concurrent renders cannot use different policies.
+     * </p>
+     */
+    public static void
+    setLoneSurrogatePolicy(LoneSurrogatePolicy policy) { Entities.loneSurrogatePolicy = policy; }
+
+    /**
+     * @see #setLoneSurrogatePolicy(LoneSurrogatePolicy)
+     */
+    public static LoneSurrogatePolicy
+    getLoneSurrogatePolicy() { return Entities.loneSurrogatePolicy; }
+
     /**
      * Replaces the five XML "special characters" with the respective "predefined entities".
      * <table border="1">
@@ -61,36 +122,28 @@ class Entities {
      */
     public static String
     replaceXmlSpecialCharactersWithPredefinedEntities(String s) {
-        int len = s.length();
-
-        int idx;
 
         // Optimization for the special case when the string contains no characters that need to be replaced.
-        NEEDS_ENCODING: {
-
-            for (idx = 0; idx < len; idx++) {
-                char c = s.charAt(idx);
-                if (c == '"' || c == '&' || c == '\'' || c == '<' || c == '>') break NEEDS_ENCODING;
-            }
-
-            return s;
-        }
+        int idx = Entities.indexOfAny(s, 0, Entities.XML_SPECIALS);
+        if (idx == -1) return s;
 
         // At this point, "idx" is the index of the first character within "s" than needs to be escaped as an SGML
         // entity.
 
-        StringBuilder sb = new StringBuilder(s.substring(0, idx));
-        for (; idx < len; idx++) {
-            char c = s.charAt(idx);
-            switch (c) {
+        StringBuilder sb    = new StringBuilder(s.length() + 16);
+        int           start = 0, n = 0;
+        for (; idx != -1; start = ++idx, idx = Entities.indexOfAny(s, idx, Entities.XML_SPECIALS), n++) {
+            sb.append(s, start, idx);
+            switch (s.charAt(idx)) {
             case '"':  sb.append("&quot;"); break;
             case '&':  sb.append("&amp;");  break;
             case '\'': sb.append("&apos;"); break;
             case '<':  sb.append("&lt;");   break;
-            case '>':  sb.append("&gt;");   break;
-            default:   sb.append(c);        break;
+            default:   sb.append("&gt;");   break;
             }
         }
+        sb.append(s, start, s.length());
+        Entities.REPLACEMENT_COUNT.add(n);
 
         return sb.toString();
     }
@@ -99,13 +152,19 @@ class Entities {
      * Replaces all characters with unicode code point 128 and greater either with
      * <ul>
      *   <li>
-     *     An "HTML character entity reference" (like "{@code &auml;}" for "&auml;"), if defined for the codepoint, or
+     *     An "HTML character entity reference" (like "{@code &auml;}" for "&auml;"), if defined for the codepoint and
+     *     not longer than the numeric character reference, or
      *   </li>
      *   <li>
      *     A "numeric character reference" (like "{@code &#12345;}" for the character for codepoint 12345).
      *   </li>
      * </ul>
      * <p>
+     *   A surrogate pair is replaced with <em>one</em> numeric character reference for its (supplementary) code point;
+     *   lone surrogates are handled according to the {@link #setLoneSurrogatePolicy(LoneSurrogatePolicy) lone
+     *   surrogate policy}.
+     * </p>
+     * <p>
      *   Particularly, double quotes, ampersands, single quotes, less-than signs and greater-than signs (also known as
      *   "XML special characters") are <i>not</i> replaced!
      * </p>
@@ -114,106 +173,717 @@ class Entities {
      */
     public static String
     replaceNonAsciiCharactersWithHtmlCharacterReferences(String s) {
-        int len = s.length();
 
         // Optimization for the special case when the string contains no characters that need to be replaced.
-        int    idx;
-        NEEDS_ENCODING: {
+        int idx = Entities.indexOfNonAscii(s, 0, s.length());
+        if (idx == -1) return s;
+
+        // At this point, "idx" is the index of the first character within "s" than needs to be replaced.
+
+        StringBuilder sb = new StringBuilder(s.length() + 16);
+        try {
+            Entities.replace(s, 0, idx, s.length(), false, null, sb);
+        } catch (IOException ioe) {
+
+            // A StringBuilder never throws IOExceptions.
+            throw new AssertionError(ioe);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Replaces all characters with unicode code point 128 and greater with "numeric character references" (like
+     * "{@code &#12345;}" for the character for codepoint 12345).
+     * <p>
+     *   A surrogate pair is replaced with <em>one</em> numeric character reference for its (supplementary) code point;
+     *   lone surrogates are handled according to the {@link #setLoneSurrogatePolicy(LoneSurrogatePolicy) lone
+     *   surrogate policy}.
+     * </p>
+     *
+     * @see #replaceXmlSpecialCharactersWithPredefinedEntities(String)
+     */
+    public static String
+    replaceNonAsciiCharactersWithNumericCharacterReferences(String s) {
+
+        // Optimization for the special case when the string contains no characters that need to be replaced.
+        int idx = Entities.indexOfNonAscii(s, 0, s.length());
+        if (idx == -1) return s;
+
+        // At this point, "idx" is the index of the first character within "s" than needs to be escaped as an SGML
+        // entity.
+
+        StringBuilder sb = new StringBuilder(s.length() + 16);
+        try {
+            Entities.replaceNonAsciiWithNumericReferences(s, idx, sb);
+        } catch (IOException ioe) {
+
+            // A StringBuilder never throws IOExceptions.
+            throw new AssertionError(ioe);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Combines {@link #replaceXmlSpecialCharactersWithPredefinedEntities(String)} and {@link
+     * #replaceNonAsciiCharactersWithHtmlCharacterReferences(String)} in one pass; much cheaper than calling the two
+     * methods in a row, because the string is scanned and copied only once.
+     *
+     * @return <var>s</var> (without any allocation) iff <var>s</var> contains no such characters
+     */
+    public static String
+    escapeAndReplaceNonAscii(String s) {
+
+        int idx = Entities.indexOfXmlSpecialOrNonAscii(s, 0, s.length());
+        if (idx == -1) return s;
+
+        StringBuilder sb = new StringBuilder(s.length() + 16);
+        try {
+            Entities.replace(s, 0, idx, s.length(), true, null, sb);
+        } catch (IOException ioe) {
+
+            // A StringBuilder never throws IOExceptions.
+            throw new AssertionError(ioe);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Same as {@link #escapeAndReplaceNonAscii(String)}, but writes the result to <var>out</var>.
+     */
+    public static void
+    escapeAndReplaceNonAscii(CharSequence s, Appendable out) throws IOException {
+        Entities.replace(s, 0, 0, s.length(), true, null, out);
+    }
+
+    /**
+     * Replaces only those non-ASCII characters that the <var>encodable</var> charset cannot encode (plus lone
+     * surrogates) with HTML character references, like {@link
+     * #replaceNonAsciiCharactersWithHtmlCharacterReferences(String)}; all other characters remain as they are.
+     *
+     * @return <var>s</var> (without any allocation) iff <var>s</var> contains no such characters
+     */
+    public static String
+    replaceUnencodableCharactersWithHtmlCharacterReferences(String s, EncodableChars encodable) {
+
+        int idx = Entities.indexOfReplaceable(s, 0, s.length(), false, encodable);
+        if (idx == -1) return s;
+
+        StringBuilder sb = new StringBuilder(s.length() + 16);
+        try {
+            Entities.replace(s, 0, idx, s.length(), false, encodable, sb);
+        } catch (IOException ioe) {
+
+            // A StringBuilder never throws IOExceptions.
+            throw new AssertionError(ioe);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Combines {@link #replaceXmlSpecialCharactersWithPredefinedEntities(String)} and {@link
+     * #replaceUnencodableCharactersWithHtmlCharacterReferences(String, EncodableChars)} in one pass, and writes the
+     * result to <var>out</var>.
+     */
+    public static void
+    escapeAndReplaceUnencodable(CharSequence s, EncodableChars encodable, Appendable out) throws IOException {
+        Entities.replace(s, 0, 0, s.length(), true, encodable, out);
+    }
+
+    /**
+     * Appends the characters <var>start</var> through <var>end</var> of <var>s</var> to <var>out</var>, with all
+     * non-ASCII characters replaced like {@link #replaceNonAsciiCharactersWithHtmlCharacterReferences(String)} does;
+     * creates no intermediate strings.
+     */
+    public static void
+    appendNonAsciiAsReferences(CharSequence s, int start, int end, Appendable out) throws IOException {
+        Entities.replace(s, start, start, end, false, null, out);
+    }
+
+    /**
+     * Same as {@link #appendNonAsciiAsReferences(CharSequence, int, int, Appendable)}, but for a range of a {@code
+     * char} array.
+     */
+    public static void
+    appendNonAsciiAsReferences(char[] cbuf, int start, int end, Appendable out) throws IOException {
+        Entities.replace(CharBuffer.wrap(cbuf), start, start, end, false, null, out);
+    }
+
+    /**
+     * Appends the characters <var>start</var> through <var>end</var> of <var>s</var> to <var>out</var>, with only the
+     * non-ASCII characters that the <var>encodable</var> charset cannot encode replaced like {@link
+     * #replaceUnencodableCharactersWithHtmlCharacterReferences(String, EncodableChars)} does; creates no intermediate
+     * strings.
+     */
+    public static void
+    appendUnencodableAsReferences(CharSequence s, int start, int end, EncodableChars encodable, Appendable out)
+    throws IOException {
+        Entities.replace(s, start, start, end, false, encodable, out);
+    }
+
+    /**
+     * Replaces only those characters that are special in HTML element text (between tags), i.e. "{@code &}" and
+     * "{@code <}", with "{@code &amp;}" and "{@code &lt;}".
+     * <p>
+     *   Contrary to {@link #replaceXmlSpecialCharactersWithPredefinedEntities(String)}, the result is <em>not</em>
+     *   suitable for attribute values.
+     * </p>
+     *
+     * @return <var>s</var> (without any allocation) iff <var>s</var> contains no such characters
+     */
+    public static String
+    escapeText(String s) {
+
+        int idx = Entities.indexOfTextSpecial(s, 0);
+        if (idx == -1) return s;
+
+        StringBuilder sb = new StringBuilder(s.length() + 16);
+        try {
+            Entities.escapeText(s, idx, sb);
+        } catch (IOException ioe) {
+
+            // A StringBuilder never throws IOExceptions.
+            throw new AssertionError(ioe);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Same as {@link #escapeText(String)}, but writes the result to <var>out</var>.
+     */
+    public static void
+    escapeText(CharSequence s, Appendable out) throws IOException { Entities.escapeText(s, 0, out); }
+
+    /**
+     * Replaces only those characters that are special in a double-quoted HTML attribute value, i.e. "{@code &}" and
+     * "{@code "}", with "{@code &amp;}" and "{@code &quot;}".
+     *
+     * @return <var>s</var> (without any allocation) iff <var>s</var> contains no such characters
+     */
+    public static String
+    escapeAttribute(String s) {
+
+        int idx = Entities.indexOfAttributeSpecial(s, 0);
+        if (idx == -1) return s;
+
+        StringBuilder sb = new StringBuilder(s.length() + 16);
+        try {
+            Entities.escapeAttribute(s, idx, sb);
+        } catch (IOException ioe) {
+
+            // A StringBuilder never throws IOExceptions.
+            throw new AssertionError(ioe);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Same as {@link #escapeAttribute(String)}, but writes the result to <var>out</var>.
+     */
+    public static void
+    escapeAttribute(CharSequence s, Appendable out) throws IOException { Entities.escapeAttribute(s, 0, out); }
+
+    /**
+     * Percent-encodes all characters of the given URL (or relative URL) that are not allowed in the path, query or
+     * fragment of a URL, and replaces "{@code &}" with "{@code &amp;}", so that the result can be used as the value of
+     * a double-quoted HTML attribute like {@code href="..."}.
+     * <p>
+     *   Non-ASCII characters are percent-encoded as their UTF-8 byte sequences. Existing percent-escapes (like "{@code
+     *   %20}") are left alone; however, "{@code &}" is always replaced, so the method must be applied exactly once, to
+     *   the raw URL, and not to a URL that is already escaped for HTML.
+     * </p>
+     *
+     * @return <var>url</var> (without any allocation) iff <var>url</var> contains no such characters
+     */
+    public static String
+    encodeUrl(String url) {
 
-            for (idx = 0; idx < len; idx++) {
-                if (s.charAt(idx) >= 128) break NEEDS_ENCODING;
+        int idx = Entities.indexOfUrlSpecial(url, 0);
+        if (idx == -1) return url;
+
+        StringBuilder sb = new StringBuilder(url.length() + 16);
+        try {
+            Entities.encodeUrl(url, idx, sb);
+        } catch (IOException ioe) {
+
+            // A StringBuilder never throws IOExceptions.
+            throw new AssertionError(ioe);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Same as {@link #encodeUrl(String)}, but writes the result to <var>out</var>.
+     */
+    public static void
+    encodeUrl(CharSequence url, Appendable out) throws IOException { Entities.encodeUrl(url, 0, out); }
+
+    /**
+     * Replaces numeric character references (like "{@code &#228;}" and "{@code &#xE4;}"), the five predefined XML
+     * entities, and the HTML 4 character entity references (like "{@code &auml;}") with the characters they stand
+     * for; all other "{@code &}"s are left alone.
+     *
+     * @return <var>s</var> (without any allocation) iff <var>s</var> contains no "{@code &}"
+     */
+    public static String
+    decodeCharacterReferences(String s) {
+
+        int idx = s.indexOf('&');
+        if (idx == -1) return s;
+
+        StringBuilder sb    = new StringBuilder(s.length());
+        int           start = 0;
+        for (; idx != -1; idx = s.indexOf('&', idx + 1)) {
+
+            int semicolon = s.indexOf(';', idx + 1);
+            if (semicolon == -1) break;
+            if (semicolon - idx > 32) continue;
+
+            int codePoint = Entities.decodeCharacterReference(s.substring(idx + 1, semicolon));
+            if (codePoint == -1) continue;
+
+            sb.append(s, start, idx).appendCodePoint(codePoint);
+            start = semicolon + 1;
+            idx   = semicolon;
+        }
+
+        return sb.append(s, start, s.length()).toString();
+    }
+
+    /**
+     * @param name E.g. "{@code auml}", "{@code #228}" or "{@code #xE4}"
+     * @return     The code point, or -1 iff the <var>name</var> is unknown or invalid
+     */
+    private static int
+    decodeCharacterReference(String name) {
+
+        if (!name.startsWith("#")) {
+            Integer result = EntityNames.CODE_POINTS.get(name);
+            return result == null ? -1 : result;
+        }
+
+        int codePoint;
+        try {
+            codePoint = (
+                name.startsWith("#x") || name.startsWith("#X")
+                ? Integer.parseInt(name.substring(2), 16)
+                : Integer.parseInt(name.substring(1))
+            );
+        } catch (NumberFormatException nfe) {
+            return -1;
+        }
+
+        return Character.isValidCodePoint(codePoint) ? codePoint : -1;
+    }
+
+    /**
+     * The code points of the predefined XML entities and of all HTML 4 character entities, by entity name;
+     * initialized on first use.
+     */
+    private static final
+    class EntityNames {
+
+        static final Map<String, Integer> CODE_POINTS = new HashMap<String, Integer>();
+        static {
+            EntityNames.CODE_POINTS.put("quot", (int) '"');
+            EntityNames.CODE_POINTS.put("amp",  (int) '&');
+            EntityNames.CODE_POINTS.put("apos", (int) '\'');
+            EntityNames.CODE_POINTS.put("lt",   (int) '<');
+            EntityNames.CODE_POINTS.put("gt",   (int) '>');
+
+            // Each name is followed by a semicolon and the code unit.
+            String names = HtmlCharacterReferences.names();
+            for (int i = 0; i < names.length();) {
+                int semicolon = names.indexOf(';', i);
+                EntityNames.CODE_POINTS.put(names.substring(i, semicolon), (int) names.charAt(semicolon + 1));
+                i = semicolon + 2;
             }
+        }
+    }
+
+    /**
+     * Bit masks of ASCII characters below 64 for {@link #indexOfAny(CharSequence, int, long)}.
+     */
+    private static final long
+    XML_SPECIALS       = 1L << '"' | 1L << '&' | 1L << '\'' | 1L << '<' | 1L << '>',
+    TEXT_SPECIALS      = 1L << '&' | 1L << '<',
+    ATTRIBUTE_SPECIALS = 1L << '&' | 1L << '"';
 
-            return s;
+    /**
+     * Finds the next character that is set in the <var>mask</var>. Tests each character with one comparison and
+     * one bit test, instead of one comparison per special character; letters (the vast majority of characters in
+     * typical text) are rejected by the first comparison.
+     * <p>
+     *   Notice: This method (like the other scanners) deliberately scans char by char. Java 8 offers no way to read
+     *   the characters of a string (or char array) as {@code long}s without copying them first, so word-at-a-time
+     *   ("SWAR") scanning is not implemented.
+     * </p>
+     *
+     * @param mask Bit <var>c</var> is set iff character <var>c</var> is special (all special characters must be
+     *             below 64)
+     * @return     The index of the first special character at or after <var>from</var>, or -1
+     */
+    private static int
+    indexOfAny(CharSequence s, int from, long mask) {
+        for (int len = s.length(); from < len; from++) {
+            char c = s.charAt(from);
+            if (c < 64 && (mask >>> c & 1) != 0) return from;
         }
+        return -1;
+    }
 
-        // At this point, "idx" is the index of the first character within "s" than needs to be replaced.
+    /**
+     * @return The index of the first character at or after <var>from</var> and before <var>end</var> that is not
+     *         ASCII, or -1
+     */
+    private static int
+    indexOfNonAscii(CharSequence s, int from, int end) {
+        for (; from < end; from++) {
+            if (s.charAt(from) >= 128) return from;
+        }
+        return -1;
+    }
+
+    /**
+     * @return The index of the first XML special character or non-ASCII character at or after <var>from</var> and
+     *         before <var>end</var>, or -1
+     */
+    private static int
+    indexOfXmlSpecialOrNonAscii(CharSequence s, int from, int end) {
+        for (; from < end; from++) {
+            char c = s.charAt(from);
+            if (c >= 128 || c < 64 && (Entities.XML_SPECIALS >>> c & 1) != 0) return from;
+        }
+        return -1;
+    }
 
-        StringBuilder sb = new StringBuilder(s.substring(0, idx));
+    /**
+     * @return The index of the first character at or after <var>from</var> and before <var>end</var> that {@link
+     *         #replace(CharSequence, int, int, int, boolean, EncodableChars, Appendable)} must replace, or -1
+     */
+    private static int
+    indexOfReplaceable(CharSequence s, int from, int end, boolean escape, @Nullable EncodableChars encodable) {
+
+        if (encodable == null) {
+            return (
+                escape
+                ? Entities.indexOfXmlSpecialOrNonAscii(s, from, end)
+                : Entities.indexOfNonAscii(s, from, end)
+            );
+        }
 
-        for (; idx < len; idx++) {
-            char c = s.charAt(idx);
+        for (; from < end; from++) {
+            char c = s.charAt(from);
 
-            if (c <= 127) {
-                sb.append(c);
+            if (c < 128) {
+                if (escape && c < 64 && (Entities.XML_SPECIALS >>> c & 1) != 0) return from;
                 continue;
             }
 
-            String entity = Entities.HTML_CHARACTER_ENTITIES.get(c);
-            if (entity != null) {
-                sb.append('&').append(entity).append(';');
-                continue;
+            if (!encodable.canEncode(c)) return from;
+
+            if (Character.isSurrogate(c)) {
+
+                // Only a valid surrogate pair is encodable.
+                if (
+                    !Character.isHighSurrogate(c)
+                    || from + 1 >= end
+                    || !Character.isLowSurrogate(s.charAt(from + 1))
+                ) return from;
+                from++;
             }
+        }
+        return -1;
+    }
+
+    private static int
+    indexOfTextSpecial(CharSequence s, int from) { return Entities.indexOfAny(s, from, Entities.TEXT_SPECIALS); }
 
-            sb.append("&#").append((int) c).append(';');
+    private static int
+    indexOfAttributeSpecial(CharSequence s, int from) {
+        return Entities.indexOfAny(s, from, Entities.ATTRIBUTE_SPECIALS);
+    }
+
+    private static int
+    indexOfUrlSpecial(CharSequence s, int from) {
+        for (int len = s.length(); from < len; from++) {
+            char c = s.charAt(from);
+            if (c >= 128 || !Entities.URL_SAFE[c]) return from;
         }
+        return -1;
+    }
 
-        return sb.toString();
+    /**
+     * @param idx The index of the first character that <em>may</em> need escaping; the characters before are copied
+     *            verbatim
+     */
+    private static void
+    escapeText(CharSequence s, int idx, Appendable out) throws IOException {
+        int start = 0, n = 0;
+        for (; (idx = Entities.indexOfTextSpecial(s, idx)) != -1; start = ++idx, n++) {
+            Entities.append(s, start, idx, out);
+            out.append(s.charAt(idx) == '&' ? "&amp;" : "&lt;");
+        }
+        Entities.append(s, start, s.length(), out);
+        Entities.REPLACEMENT_COUNT.add(n);
     }
 
     /**
-     * Replaces all characters with unicode code point 128 and greater with "numeric character references" (like
-     * "{@code &#12345;}" for the character for codepoint 12345).
+     * Replaces the non-ASCII characters with numeric character references.
      *
-     * @see #replaceXmlSpecialCharactersWithPredefinedEntities(String)
+     * @param idx The index of the first character that <em>may</em> need replacing; the characters before are copied
+     *            verbatim
      */
-    public static String
-    replaceNonAsciiCharactersWithNumericCharacterReferences(String s) {
-        int len = s.length();
-
-        // Optimization for the special case when the string contains no characters that need to be replaced.
-        int idx;
-        NEEDS_ENCODING: {
+    private static void
+    replaceNonAsciiWithNumericReferences(CharSequence s, int idx, Appendable out) throws IOException {
+        int start = 0, n = 0, end = s.length();
+        for (; (idx = Entities.indexOfNonAscii(s, idx, end)) != -1; idx = start, n++) {
+            Entities.append(s, start, idx, out);
+            start = idx + Entities.appendCharacterReference(s, idx, end, false, out);
+        }
+        Entities.append(s, start, end, out);
+        Entities.REPLACEMENT_COUNT.add(n);
+    }
 
-            for (idx = 0; idx < len; idx++) {
-                if (s.charAt(idx) >= 128) break NEEDS_ENCODING;
+    /**
+     * Copies the characters <var>start</var> through <var>end</var> of <var>s</var> to <var>out</var>, and replaces
+     * the non-ASCII characters with HTML character references.
+     *
+     * @param idx       The index of the first character that <em>may</em> need replacing; the characters before are
+     *                  copied verbatim
+     * @param escape    Whether to replace the XML special characters, too
+     * @param encodable The characters that need <em>not</em> be replaced; {@code null} means to replace all
+     *                  non-ASCII characters
+     */
+    private static void
+    replace(
+        CharSequence             s,
+        int                      start,
+        int                      idx,
+        int                      end,
+        boolean                  escape,
+        @Nullable EncodableChars encodable,
+        Appendable               out
+    ) throws IOException {
+        int n = 0;
+        for (; (idx = Entities.indexOfReplaceable(s, idx, end, escape, encodable)) != -1; idx = start, n++) {
+            Entities.append(s, start, idx, out);
+            switch (s.charAt(idx)) {
+            case '"':  out.append("&quot;"); start = idx + 1; break;
+            case '&':  out.append("&amp;");  start = idx + 1; break;
+            case '\'': out.append("&apos;"); start = idx + 1; break;
+            case '<':  out.append("&lt;");   start = idx + 1; break;
+            case '>':  out.append("&gt;");   start = idx + 1; break;
+            default:   start = idx + Entities.appendCharacterReference(s, idx, end, true, out); break;
             }
+        }
+        Entities.append(s, start, end, out);
+        if (n > 0) Entities.REPLACEMENT_COUNT.add(n);
+    }
 
-            return s;
+    private static void
+    escapeAttribute(CharSequence s, int idx, Appendable out) throws IOException {
+        int start = 0, n = 0;
+        for (; (idx = Entities.indexOfAttributeSpecial(s, idx)) != -1; start = ++idx, n++) {
+            Entities.append(s, start, idx, out);
+            out.append(s.charAt(idx) == '&' ? "&amp;" : "&quot;");
         }
+        Entities.append(s, start, s.length(), out);
+        Entities.REPLACEMENT_COUNT.add(n);
+    }
 
-        // At this point, "idx" is the index of the first character within "s" than needs to be escaped as an SGML
-        // entity.
+    private static void
+    encodeUrl(CharSequence s, int idx, Appendable out) throws IOException {
+        int start = 0, len = s.length();
+        for (; (idx = Entities.indexOfUrlSpecial(s, idx)) != -1; start = ++idx) {
+            Entities.append(s, start, idx, out);
 
-        StringBuilder sb = new StringBuilder(s.substring(0, idx));
+            int c = s.charAt(idx);
+            if (c == '&') {
+                out.append("&amp;");
+                continue;
+            }
 
-        for (; idx < len; idx++) {
-            char c = s.charAt(idx);
+            if (
+                Character.isHighSurrogate((char) c)
+                && idx + 1 < len
+                && Character.isLowSurrogate(s.charAt(idx + 1))
+            ) {
+                c = Character.toCodePoint((char) c, s.charAt(++idx));
+            } else
+            if (Character.isSurrogate((char) c)) {
+                c = 0xfffd;
+            }
 
-            if (c <= 127) {
-                sb.append(c);
-            } else {
-                sb.append("&#").append((int) c).append(';');
+            // Percent-encode the UTF-8 byte sequence of the code point.
+            if (c < 0x80) {
+                Entities.appendPercentEncoded(c, out);
+            } else
+            if (c < 0x800) {
+                Entities.appendPercentEncoded(0xc0 | c >> 6, out);
+                Entities.appendPercentEncoded(0x80 | c & 0x3f, out);
+            } else
+            if (c < 0x10000) {
+                Entities.appendPercentEncoded(0xe0 | c >> 12, out);
+                Entities.appendPercentEncoded(0x80 | c >> 6 & 0x3f, out);
+                Entities.appendPercentEncoded(0x80 | c & 0x3f, out);
+            } else
+            {
+                Entities.appendPercentEncoded(0xf0 | c >> 18, out);
+                Entities.appendPercentEncoded(0x80 | c >> 12 & 0x3f, out);
+                Entities.appendPercentEncoded(0x80 | c >> 6 & 0x3f, out);
+                Entities.appendPercentEncoded(0x80 | c & 0x3f, out);
             }
         }
+        Entities.append(s, start, len, out);
+    }
 
-        return sb.toString();
+    private static void
+    appendPercentEncoded(int b, Appendable out) throws IOException {
+        out.append('%').append(Entities.HEX_DIGITS[b >> 4]).append(Entities.HEX_DIGITS[b & 0xf]);
     }
 
-    private static final Map<Character, String> HTML_CHARACTER_ENTITIES;
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    /**
+     * The ASCII characters that {@link #encodeUrl(String)} leaves as they are: The "unreserved" and "reserved"
+     * characters of RFC 3986, and "{@code %}" (to leave existing percent-escapes alone), but not "{@code &}".
+     */
+    private static final boolean[] URL_SAFE = new boolean[128];
     static {
-        try {
-            InputStream is = Entities.class.getResourceAsStream("html-character-entities.properties");
-            assert is != null : "Resource \"html-character-entities.properties\" not found";
+        for (char c = 'A'; c <= 'Z'; c++) Entities.URL_SAFE[c] = true;
+        for (char c = 'a'; c <= 'z'; c++) Entities.URL_SAFE[c] = true;
+        for (char c = '0'; c <= '9'; c++) Entities.URL_SAFE[c] = true;
+        for (char c : "-._~!$'()*+,;=:@/?#[]%".toCharArray()) Entities.URL_SAFE[c] = true;
+    }
 
-            Properties p = new Properties();
-            p.load(is);
+    /**
+     * Appends the given range of characters; avoids the creation of a temporary string where possible (which {@link
+     * Writer#append(CharSequence, int, int)} does not).
+     */
+    private static void
+    append(CharSequence s, int start, int end, Appendable out) throws IOException {
+
+        if (start == end) return;
+
+        if (out instanceof Writer && s instanceof String) {
+            ((Writer) out).write((String) s, start, end - start);
+        } else
+        if (out instanceof Writer && s instanceof CharBuffer && ((CharBuffer) s).hasArray()) {
+            CharBuffer cb = (CharBuffer) s;
+            ((Writer) out).write(cb.array(), cb.arrayOffset() + cb.position() + start, end - start);
+        } else
+        if (out instanceof StringBuilder) {
+            ((StringBuilder) out).append(s, start, end);
+        } else
+        {
+            out.append(s, start, end);
+        }
+    }
 
-            is.close();
+    /**
+     * Appends the replacement of the non-ASCII character at index <var>idx</var>; handles surrogate pairs (that end
+     * before <var>end</var>) and lone surrogates.
+     *
+     * @param html Whether to use HTML character entity references where possible
+     * @return     The number of chars consumed (1 or 2)
+     */
+    private static int
+    appendCharacterReference(CharSequence s, int idx, int end, boolean html, Appendable out) throws IOException {
 
-            Map<Character, String> m = new HashMap<Character, String>();
-            for (Entry<Object, Object> e : p.entrySet()) {
-                String key   = (String) e.getKey();
-                String value = (String) e.getValue();
+        char c = s.charAt(idx);
 
-                assert key.length() == 1;
+        if (!Character.isSurrogate(c)) {
+            if (html) {
+                Entities.appendHtmlCharacterReference(c, out);
+            } else {
+                Entities.appendNumericCharacterReference(c, out);
+            }
+            return 1;
+        }
 
-                m.put(key.charAt(0), value);
+        if (Character.isHighSurrogate(c) && idx + 1 < end) {
+            char c2 = s.charAt(idx + 1);
+            if (Character.isLowSurrogate(c2)) {
+                Entities.appendNumericCharacterReference(Character.toCodePoint(c, c2), out);
+                return 2;
             }
+        }
+
+        switch (Entities.loneSurrogatePolicy) {
+
+        case REPLACE:
+            out.append("&#65533;");
+            break;
+
+        case NUMERIC:
+            Entities.appendNumericCharacterReference(c, out);
+            break;
+
+        case DROP:
+            break;
+
+        case EXCEPTION:
+            throw new IllegalArgumentException(
+                "Lone surrogate U+" + Integer.toHexString(c).toUpperCase() + " at index " + idx
+            );
+        }
+        return 1;
+    }
+
+    /**
+     * Appends the replacement of the given non-ASCII character, i.e. the shorter of its HTML character entity reference
+     * (if any) and its numeric character reference.
+     */
+    private static void
+    appendHtmlCharacterReference(char c, Appendable out) throws IOException {
+
+        if (c >= Entities.REFERENCES_END) {
+            Entities.appendNumericCharacterReference(c, out);
+            return;
+        }
+
+        int offset = Entities.REFERENCE_OFFSETS[c - 128];
+        int len    = Entities.REFERENCE_OFFSETS[c - 127] - offset;
+        if (out instanceof StringBuilder) {
+            ((StringBuilder) out).append(Entities.REFERENCE_CHARS, offset, len);
+        } else
+        if (out instanceof Writer) {
+            ((Writer) out).write(Entities.REFERENCE_CHARS, offset, len);
+        } else
+        {
+            for (int i = offset, end = offset + len; i < end; i++) out.append(Entities.REFERENCE_CHARS[i]);
+        }
+    }
+
+    /**
+     * Appends "{@code &#}<var>codePoint</var>{@code ;}" (in decimal).
+     */
+    private static void
+    appendNumericCharacterReference(int codePoint, Appendable out) throws IOException {
+        if (out instanceof StringBuilder) {
+            ((StringBuilder) out).append("&#").append(codePoint).append(';');
+        } else {
+            out.append("&#").append(Integer.toString(codePoint)).append(';');
+        }
+    }
+
+    /**
+     * The replacements of the code units 128 (inclusive) through {@link #REFERENCES_END} (exclusive), i.e. the code
+     * units up to the last one that has an HTML character entity: The replacement of code unit <var>c</var> are the
+     * {@link #REFERENCE_CHARS} from {@code REFERENCE_OFFSETS[c - 128]} to {@code REFERENCE_OFFSETS[c - 127]}.
+     * <p>
+     *   Each replacement is the shorter of the HTML character entity reference and the numeric character reference;
+     *   where both have the same length, the (more readable) entity reference.
+     * </p>
+     */
+    private static final char[] REFERENCE_CHARS   = HtmlCharacterReferences.chars().toCharArray();
+    private static final int    REFERENCES_END    = HtmlCharacterReferences.END;
+    private static final int[]  REFERENCE_OFFSETS = new int[Entities.REFERENCES_END - 128 + 1];
+    static {
 
-            HTML_CHARACTER_ENTITIES = m;
-        } catch (Exception e) {
-            throw new ExceptionInInitializerError(e);
+        // Each replacement ends with a semicolon.
+        for (int i = 0, c = 1; c < Entities.REFERENCE_OFFSETS.length; i++) {
+            if (Entities.REFERENCE_CHARS[i] == ';') Entities.REFERENCE_OFFSETS[c++] = i + 1;
         }
     }
 }
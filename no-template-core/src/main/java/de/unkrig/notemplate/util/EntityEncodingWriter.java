@@ -0,0 +1,172 @@
+
+/*
+ * No-Template - an extremely light-weight templating framework
+ *
+ * Copyright (c) 2015, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.notemplate.util;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
+
+import de.unkrig.commons.lang.AssertionUtil;
+import de.unkrig.commons.nullanalysis.Nullable;
+
+/**
+ * A {@link Writer} that replaces non-ASCII characters with HTML character references on the fly, and writes the
+ * result to a delegate writer. Surrogate pairs that are split across two {@code write()} calls are handled correctly.
+ *
+ * @see Entities#appendNonAsciiAsReferences(CharSequence, int, int, Appendable)
+ * @see Entities#appendUnencodableAsReferences(CharSequence, int, int, EncodableChars, Appendable)
+ */
+public
+class EntityEncodingWriter extends FilterWriter {
+
+    static { AssertionUtil.enableAssertionsForThisClass(); }
+
+    @Nullable private final EncodableChars encodable;
+
+    /**
+     * A high surrogate that was the last character of the preceding {@code write()}, or 0.
+     */
+    private char pendingHighSurrogate;
+
+    /**
+     * Replaces <em>all</em> non-ASCII characters.
+     */
+    public
+    EntityEncodingWriter(Writer out) { this(out, null); }
+
+    /**
+     * @param encodable The characters that need <em>not</em> be replaced; {@code null} means to replace all
+     *                  non-ASCII characters
+     */
+    public
+    EntityEncodingWriter(Writer out, @Nullable EncodableChars encodable) {
+        super(out);
+        this.encodable = encodable;
+    }
+
+    @Override public void
+    write(int c) throws IOException {
+
+        char ch = (char) c;
+
+        if (this.pendingHighSurrogate != 0) {
+            if (Character.isLowSurrogate(ch)) {
+                this.replace(new String(new char[] { this.pendingHighSurrogate, ch }));
+                this.pendingHighSurrogate = 0;
+                return;
+            }
+            this.flushPendingHighSurrogate();
+        }
+
+        if (Character.isHighSurrogate(ch)) {
+            this.pendingHighSurrogate = ch;
+            return;
+        }
+
+        // Most characters need no replacement; write them without any allocation.
+        EncodableChars e = this.encodable;
+        if (ch < 128 || (e != null && !Character.isSurrogate(ch) && e.canEncode(ch))) {
+            this.out.write(ch);
+            return;
+        }
+
+        this.replace(String.valueOf(ch));
+    }
+
+    @Override public void
+    write(char[] cbuf, int off, int len) throws IOException {
+
+        if (len <= 0) return;
+
+        int end = off + len;
+
+        if (this.pendingHighSurrogate != 0) {
+            if (Character.isLowSurrogate(cbuf[off])) {
+                this.replace(new String(new char[] { this.pendingHighSurrogate, cbuf[off++] }));
+                this.pendingHighSurrogate = 0;
+            } else {
+                this.flushPendingHighSurrogate();
+            }
+        }
+
+        if (off < end && Character.isHighSurrogate(cbuf[end - 1])) this.pendingHighSurrogate = cbuf[--end];
+
+        this.replace(CharBuffer.wrap(cbuf), off, end);
+    }
+
+    @Override public void
+    write(String str, int off, int len) throws IOException {
+
+        if (len <= 0) return;
+
+        int end = off + len;
+
+        if (this.pendingHighSurrogate != 0) {
+            if (Character.isLowSurrogate(str.charAt(off))) {
+                this.replace(new String(new char[] { this.pendingHighSurrogate, str.charAt(off++) }));
+                this.pendingHighSurrogate = 0;
+            } else {
+                this.flushPendingHighSurrogate();
+            }
+        }
+
+        if (off < end && Character.isHighSurrogate(str.charAt(end - 1))) {
+            this.pendingHighSurrogate = str.charAt(--end);
+        }
+
+        this.replace(str, off, end);
+    }
+
+    /**
+     * Writes a high surrogate that was not followed by a low surrogate, before closing the writer.
+     */
+    @Override public void
+    close() throws IOException {
+        this.flushPendingHighSurrogate();
+        super.close();
+    }
+
+    private void
+    flushPendingHighSurrogate() throws IOException {
+        if (this.pendingHighSurrogate == 0) return;
+        this.replace(String.valueOf(this.pendingHighSurrogate));
+        this.pendingHighSurrogate = 0;
+    }
+
+    private void
+    replace(String s) throws IOException { this.replace(s, 0, s.length()); }
+
+    private void
+    replace(CharSequence s, int start, int end) throws IOException {
+        if (this.encodable == null) {
+            Entities.appendNonAsciiAsReferences(s, start, end, this.out);
+        } else {
+            Entities.appendUnencodableAsReferences(s, start, end, this.encodable, this.out);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+
+/*
+ * No-Template - an extremely light-weight templating framework
+ *
+ * Copyright (c) 2015, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.notemplate.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import de.unkrig.commons.lang.AssertionUtil;
+
+/**
+ * A lock-free histogram of (non-negative) {@code long} values, typically latencies in nanoseconds, with a fixed
+ * relative precision over the entire value range.
+ * <p>
+ *   Like an "HDR histogram", values are counted in log-linear buckets: Values less than {@value #SUB_BUCKET_COUNT}
+ *   are counted exactly, and each power-of-two range above is split into {@value #SUB_BUCKET_COUNT} equally wide
+ *   buckets, which yields a relative error of less than 1/{@value #SUB_BUCKET_COUNT}. The entire {@code long} range
+ *   requires less than 2,000 buckets (and thus approx. 15 KB of memory).
+ * </p>
+ */
+public
+class LatencyHistogram {
+
+    static { AssertionUtil.enableAssertionsForThisClass(); }
+
+    private static final int SUB_BUCKET_BITS  = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << LatencyHistogram.SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT     = (
+        LatencyHistogram.SUB_BUCKET_COUNT
+        + (63 - LatencyHistogram.SUB_BUCKET_BITS) * LatencyHistogram.SUB_BUCKET_COUNT
+    );
+
+    private final AtomicLongArray counts = new AtomicLongArray(LatencyHistogram.BUCKET_COUNT);
+    private final AtomicLong      count  = new AtomicLong();
+    private final AtomicLong      sum    = new AtomicLong();
+    private final AtomicLong      max    = new AtomicLong();
+
+    /**
+     * Counts the given <var>value</var>; negative values are counted as zero.
+     */
+    public void
+    record(long value) {
+
+        if (value < 0) value = 0;
+
+        this.counts.incrementAndGet(LatencyHistogram.bucketIndex(value));
+        this.count.incrementAndGet();
+        this.sum.addAndGet(value);
+
+        for (;;) {
+            long m = this.max.get();
+            if (value <= m || this.max.compareAndSet(m, value)) break;
+        }
+    }
+
+    /** @return The number of values recorded so far */
+    public long
+    getCount() { return this.count.get(); }
+
+    /** @return The largest value recorded so far, or 0 */
+    public long
+    getMax() { return this.max.get(); }
+
+    /** @return The mean of the values recorded so far, or 0 */
+    public double
+    getMean() {
+        long n = this.count.get();
+        return n == 0 ? 0 : (double) this.sum.get() / n;
+    }
+
+    /**
+     * @param percentile 0...100
+     * @return           The (approximated) value below which the given <var>percentile</var> of the recorded values
+     *                   fall, or 0 iff no values were recorded
+     */
+    public long
+    getValueAtPercentile(double percentile) {
+
+        long n = this.count.get();
+        if (n == 0) return 0;
+
+        long threshold = Math.max(1, (long) Math.ceil(n * Math.min(percentile, 100) / 100));
+
+        long seen = 0;
+        for (int i = 0; i < LatencyHistogram.BUCKET_COUNT; i++) {
+            seen += this.counts.get(i);
+            if (seen >= threshold) return Math.min(LatencyHistogram.bucketMidpoint(i), this.max.get());
+        }
+
+        // Concurrent "record()"s can make the buckets sum up to less than "n".
+        return this.max.get();
+    }
+
+    /**
+     * Forgets all recorded values.
+     */
+    public void
+    reset() {
+        for (int i = 0; i < LatencyHistogram.BUCKET_COUNT; i++) this.counts.set(i, 0);
+        this.count.set(0);
+        this.sum.set(0);
+        this.max.set(0);
+    }
+
+    /**
+     * @return E.g. "{@code count=123, mean=1.2ms, p50=1.1ms, p90=1.5ms, p99=3.0ms, max=4.1ms}", assuming that the
+     *         values are nanoseconds
+     */
+    @Override public String
+    toString() {
+        return String.format(
+            "count=%d, mean=%.3fms, p50=%.3fms, p90=%.3fms, p99=%.3fms, max=%.3fms",
+            this.getCount(),
+            this.getMean() / 1E6,
+            this.getValueAtPercentile(50) / 1E6,
+            this.getValueAtPercentile(90) / 1E6,
+            this.getValueAtPercentile(99) / 1E6,
+            this.getMax() / 1E6
+        );
+    }
+
+    private static int
+    bucketIndex(long value) {
+
+        if (value < LatencyHistogram.SUB_BUCKET_COUNT) return (int) value;
+
+        int highestBit = 63 - Long.numberOfLeadingZeros(value);
+        int shift      = highestBit - LatencyHistogram.SUB_BUCKET_BITS;
+        int subBucket  = (int) (value >>> shift) & (LatencyHistogram.SUB_BUCKET_COUNT - 1);
+
+        return LatencyHistogram.SUB_BUCKET_COUNT + shift * LatencyHistogram.SUB_BUCKET_COUNT + subBucket;
+    }
+
+    private static long
+    bucketMidpoint(int index) {
+
+        if (index < LatencyHistogram.SUB_BUCKET_COUNT) return index;
+
+        int shift     = (index - LatencyHistogram.SUB_BUCKET_COUNT) / LatencyHistogram.SUB_BUCKET_COUNT;
+        int subBucket = (index - LatencyHistogram.SUB_BUCKET_COUNT) % LatencyHistogram.SUB_BUCKET_COUNT;
+
+        long lowerBound = (1L << (shift + LatencyHistogram.SUB_BUCKET_BITS)) | ((long) subBucket << shift);
+        return lowerBound + ((1L << shift) >>> 1);
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Client-side prefix search over the index entries; see "de.unkrig.notemplate.javadocish.SearchIndex".
+ *
+ * Loads "manifest.js" and the "shard-N.js" files from the directory of this script through <script> elements
+ * (JSONP), so it works without a server, even from "file:" URLs. Only the shards that can contain the requested
+ * prefix are loaded, and each shard is loaded at most once.
+ *
+ * Usage:
+ *
+ *   <script src="search/search.js"></script>
+ *   ...
+ *   searchIndex.search("getV", 50, function (results) {
+ *       // "results" is an array of { key, link, explanation }, where "link" is relative to the page that loaded
+ *       // this script (assuming that that page lives in the parent directory of this script).
+ *   });
+ *
+ *   // Or, for a ready-made search box:
+ *   searchIndex.attach(document.getElementById("search-input"), document.getElementById("search-results"));
+ */
+var searchIndex = (function () {
+
+    // The directory of this script, and its parent directory, which the links are relative to.
+    var scripts  = document.getElementsByTagName("script");
+    var base     = scripts[scripts.length - 1].src.replace(/[^\/]*$/, "");
+    var pageBase = base.replace(/[^\/]*\/$/, "");
+
+    var manifest = null;
+    var shards   = {};    // shard number => array of [ key, link, explanation ]
+    var waiting  = {};    // "manifest" or shard number => array of callbacks
+
+    function load(name, file, callback) {
+        if (waiting[name]) {
+            waiting[name].push(callback);
+            return;
+        }
+        waiting[name] = [ callback ];
+        var script = document.createElement("script");
+        script.src = base + file;
+        document.getElementsByTagName("head")[0].appendChild(script);
+    }
+
+    function loaded(name) {
+        var callbacks = waiting[name];
+        delete waiting[name];
+        for (var i = 0; i < callbacks.length; i++) callbacks[i]();
+    }
+
+    function withManifest(callback) {
+        if (manifest) callback(); else load("manifest", "manifest.js", callback);
+    }
+
+    function withShard(n, callback) {
+        if (shards[n]) callback(); else load(n, "shard-" + n + ".js", callback);
+    }
+
+    // The index of the first element of "a" for which "key(element) >= q", or "a.length".
+    function lowerBound(a, q, key) {
+        var lo = 0, hi = a.length;
+        while (lo < hi) {
+            var mid = (lo + hi) >>> 1;
+            if (key(a[mid]) < q) lo = mid + 1; else hi = mid;
+        }
+        return lo;
+    }
+
+    function search(prefix, limit, callback) {
+
+        var q = prefix.toLowerCase();
+
+        withManifest(function () {
+
+            var firstKeys = manifest.shards;
+            var results   = [];
+
+            if (firstKeys.length === 0) {
+                callback(results);
+                return;
+            }
+
+            // The last shard whose first key is less than "q" can also contain matches.
+            var n = Math.max(0, lowerBound(firstKeys, q, function (k) { return k; }) - 1);
+
+            (function next() {
+                withShard(n, function () {
+                    var shard = shards[n];
+                    for (var i = lowerBound(shard, q, function (e) { return e[0].toLowerCase(); }); i < shard.length; i++) {
+                        var e = shard[i];
+                        if (results.length >= limit || e[0].toLowerCase().lastIndexOf(q, 0) !== 0) {
+                            callback(results);
+                            return;
+                        }
+                        results.push({ key: e[0], link: pageBase + e[1], explanation: e[2] });
+                    }
+
+                    // All remaining entries of this shard matched; the next shard may have more matches.
+                    if (++n < firstKeys.length && firstKeys[n].lastIndexOf(q, 0) === 0 && results.length < limit) {
+                        next();
+                    } else {
+                        callback(results);
+                    }
+                });
+            })();
+        });
+    }
+
+    function attach(input, output) {
+        var seq = 0;
+        input.oninput = input.onkeyup = function () {
+            var mySeq = ++seq;
+            if (input.value === "") {
+                output.innerHTML = "";
+                return;
+            }
+            search(input.value, 100, function (results) {
+                if (mySeq !== seq) return;
+                output.innerHTML = "";
+                for (var i = 0; i < results.length; i++) {
+                    var r  = results[i];
+                    var dt = document.createElement("dt");
+                    var a  = document.createElement("a");
+                    a.href        = r.link;
+                    a.textContent = r.key;
+                    dt.appendChild(a);
+                    var span = document.createElement("span");
+                    span.textContent = " - " + r.explanation;
+                    dt.appendChild(span);
+                    output.appendChild(dt);
+                }
+            });
+        };
+    }
+
+    return {
+        manifest: function (m)          { manifest = m; loaded("manifest"); },
+        shard:    function (n, entries) { shards[n] = entries; loaded(n); },
+        search:   search,
+        attach:   attach
+    };
+})();
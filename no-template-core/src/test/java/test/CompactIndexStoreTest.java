@@ -0,0 +1,85 @@
+
+/*
+ * No-Template - an extremely light-weight templating framework
+ *
+ * Copyright (c) 2015, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package test;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.unkrig.notemplate.javadocish.CompactIndexStore;
+import de.unkrig.notemplate.javadocish.IndexPages.IndexEntry;
+
+public
+class CompactIndexStoreTest {
+
+    @Test public void
+    testRoundTrip() {
+
+        for (boolean packUtf8 : new boolean[] { false, true }) {
+            CompactIndexStore store = new CompactIndexStore(packUtf8);
+            for (int i = 0; i < 100; i++) {
+                store.add("key" + i, "pkg/Class" + (i % 3) + ".html#m" + i, "Method in class " + (i % 3), "\u00e4" + i);
+            }
+
+            Assert.assertEquals(100, store.size());
+            Assert.assertEquals(3, store.getLinkPrefixCount());
+            Assert.assertEquals(3, store.getExplanationCount());
+
+            IndexEntry entry = store.get(42);
+            Assert.assertEquals("key42", entry.getKey());
+            Assert.assertEquals("pkg/Class0.html#m42", entry.getLink());
+            Assert.assertEquals("Method in class 0", entry.getExplanation());
+            Assert.assertEquals("\u00e442", entry.getShortDescription());
+        }
+    }
+
+    @Test public void
+    testLoneSurrogates() {
+
+        for (boolean packUtf8 : new boolean[] { false, true }) {
+            CompactIndexStore store = new CompactIndexStore(packUtf8);
+            store.add("a\ud800", "Foo.html#\udc00", "Method", "\ud83d\ude00 and \udc00\ud800");
+
+            IndexEntry entry = store.get(0);
+            Assert.assertEquals("a\ud800", entry.getKey());
+            Assert.assertEquals("Foo.html#\udc00", entry.getLink());
+            Assert.assertEquals("\ud83d\ude00 and \udc00\ud800", entry.getShortDescription());
+        }
+    }
+
+    @Test public void
+    testAddAfterTrimToSize() {
+
+        CompactIndexStore store = new CompactIndexStore();
+        store.trimToSize();
+        store.add("key", "Foo.html#bar", "Method", "");
+        store.trimToSize();
+        store.add("key2", "Foo.html#baz", "Method", "");
+
+        Assert.assertEquals(2, store.size());
+        Assert.assertEquals("Foo.html#baz", store.get(1).getLink());
+    }
+}
@@ -0,0 +1,139 @@
+
+/*
+ * No-Template - an extremely light-weight templating framework
+ *
+ * Copyright (c) 2015, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.unkrig.notemplate.ContentStore;
+import de.unkrig.notemplate.HtmlTemplate;
+import de.unkrig.notemplate.RenderListeners;
+import de.unkrig.notemplate.RenderSession;
+
+public
+class ContentStoreTest {
+
+    public static
+    class Page extends HtmlTemplate {}
+
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File         site;
+    private ContentStore store;
+
+    @Before public void
+    setUp() throws IOException {
+        this.site  = this.temporaryFolder.newFolder("site");
+        this.store = new ContentStore(this.temporaryFolder.newFolder("store"));
+    }
+
+    @Test public void
+    testIdenticalFilesAreLinked() throws IOException {
+
+        File a = new File(this.site, "a.css"), b = new File(this.site, "b.css"), c = new File(this.site, "c.css");
+
+        this.write(a, "same");
+        this.write(b, "same");
+        this.write(c, "different");
+
+        Assert.assertTrue(Files.isSameFile(a.toPath(), b.toPath()));
+        Assert.assertFalse(Files.isSameFile(a.toPath(), c.toPath()));
+        Assert.assertEquals(2, this.contentFileCount());
+
+        Assert.assertEquals(3, this.store.getFileCount());
+        Assert.assertEquals(1, this.store.getDuplicateCount());
+        Assert.assertEquals(4, this.store.getBytesSaved());
+    }
+
+    @Test public void
+    testRewriteReplacesLinkOnly() throws IOException {
+
+        File a = new File(this.site, "a.html"), b = new File(this.site, "b.html");
+
+        this.write(a, "v1");
+        this.write(b, "v1");
+
+        // Unchanged content: The output file is already the right link.
+        this.write(a, "v1");
+        Assert.assertEquals(2, this.store.getDuplicateCount());
+
+        // Changed content must not affect the other link to the old content.
+        this.write(a, "v2");
+        Assert.assertEquals("v2", ContentStoreTest.read(a));
+        Assert.assertEquals("v1", ContentStoreTest.read(b));
+        Assert.assertFalse(Files.isSameFile(a.toPath(), b.toPath()));
+        Assert.assertEquals(2, this.contentFileCount());
+
+        // No temporary files are left behind.
+        String[] names = this.site.list();
+        Assert.assertNotNull(names);
+        Assert.assertEquals(2, names.length);
+    }
+
+    @Test public void
+    testRenderSession() throws IOException {
+
+        RenderSession session = new RenderSession(StandardCharsets.UTF_8, RenderListeners.NOP);
+        session.setContentStore(this.store);
+
+        File a = new File(this.site, "x/a.html"), b = new File(this.site, "y/b.html");
+        session.render(Page.class, a, (Page page) -> page.l("<p>\u00e4</p>"));
+        session.render(Page.class, b, (Page page) -> page.l("<p>\u00e4</p>"));
+
+        Assert.assertTrue(Files.isSameFile(a.toPath(), b.toPath()));
+        Assert.assertEquals("<p>&auml;</p>" + System.getProperty("line.separator"), ContentStoreTest.read(a));
+        Assert.assertEquals(1, this.store.getDuplicateCount());
+    }
+
+    private void
+    write(File file, String content) throws IOException {
+        this.store.write(file, (OutputStream os) -> os.write(content.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private long
+    contentFileCount() throws IOException {
+        try (Stream<Path> files = Files.walk(this.store.getDirectory().toPath())) {
+            return files.filter(Files::isRegularFile).count();
+        }
+    }
+
+    private static String
+    read(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+}
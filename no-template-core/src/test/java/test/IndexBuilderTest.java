@@ -0,0 +1,133 @@
+
+/*
+ * No-Template - an extremely light-weight templating framework
+ *
+ * Copyright (c) 2015, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.unkrig.notemplate.javadocish.IndexBuilder;
+import de.unkrig.notemplate.RenderListeners;
+import de.unkrig.notemplate.RenderSession;
+import de.unkrig.notemplate.javadocish.IndexPages;
+import de.unkrig.notemplate.javadocish.IndexPages.IndexEntry;
+import de.unkrig.notemplate.javadocish.Options;
+
+public
+class IndexBuilderTest {
+
+    private static final String[] NAV1 = { "Overview", "overview-summary.html" };
+
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test public void
+    testSingleIndexWithSpilling() throws IOException { this.assertSameAsCreateIndex(false); }
+
+    @Test public void
+    testSplitIndexWithSpilling() throws IOException { this.assertSameAsCreateIndex(true); }
+
+    private void
+    assertSameAsCreateIndex(boolean splitIndex) throws IOException {
+
+        List<IndexEntry> entries = IndexBuilderTest.entries(500);
+
+        File expected = this.temporaryFolder.newFolder("expected");
+        IndexPages.createIndex(entries, IndexBuilderTest.options(expected, splitIndex), IndexBuilderTest.NAV1);
+
+        File actual = this.temporaryFolder.newFolder("actual");
+        File runs   = this.temporaryFolder.newFolder("runs");
+        try (IndexBuilder ib = new IndexBuilder(7, null, runs)) {
+            ib.addAll(entries);
+            Assert.assertEquals(500, ib.size());
+            Assert.assertTrue(ib.getRunCount() > 1);
+            ib.createIndex(IndexBuilderTest.options(actual, splitIndex), IndexBuilderTest.NAV1);
+        }
+
+        // "close()" deleted the run files.
+        Assert.assertArrayEquals(new String[0], runs.list());
+
+        List<Path> expectedFiles = IndexBuilderTest.files(expected);
+        Assert.assertEquals(expectedFiles, IndexBuilderTest.files(actual));
+        for (Path file : expectedFiles) {
+            Assert.assertArrayEquals(
+                file.toString(),
+                Files.readAllBytes(expected.toPath().resolve(file)),
+                Files.readAllBytes(actual.toPath().resolve(file))
+            );
+        }
+    }
+
+    /**
+     * @return Entries in random order, with many duplicate keys, so that the order of equal entries matters, and with
+     *         some lone surrogates, which must survive the spilling
+     */
+    private static List<IndexEntry>
+    entries(int n) {
+
+        Random           r      = new Random(1);
+        List<IndexEntry> result = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            String key = (char) ('a' + r.nextInt(26)) + "x" + r.nextInt(50);
+            String sd  = "Description of " + key + (i % 7 == 0 ? " \ud800" : i % 11 == 0 ? " \udc00x" : "");
+            result.add(IndexPages.indexEntry(key, key + ".html#" + i, "Entry " + i, sd));
+        }
+        return result;
+    }
+
+    private static Options
+    options(File destination, boolean splitIndex) {
+        Options result = new Options();
+        result.destination   = destination;
+        result.splitIndex    = splitIndex;
+        result.noTimestamp   = true;
+        result.renderSession = new RenderSession(StandardCharsets.UTF_8, RenderListeners.NOP);
+        return result;
+    }
+
+    /**
+     * @return The relative paths of all files under the <var>directory</var>, sorted
+     */
+    private static List<Path>
+    files(File directory) throws IOException {
+        Path root = directory.toPath();
+        try (Stream<Path> paths = Files.walk(root)) {
+            return paths.filter(Files::isRegularFile).map(root::relativize).sorted().collect(Collectors.toList());
+        }
+    }
+}
@@ -0,0 +1,184 @@
+
+/*
+ * No-Template - an extremely light-weight templating framework
+ *
+ * Copyright (c) 2015, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.unkrig.commons.nullanalysis.Nullable;
+import de.unkrig.notemplate.RenderListeners;
+import de.unkrig.notemplate.RenderSession;
+import de.unkrig.notemplate.javadocish.IndexPages;
+import de.unkrig.notemplate.javadocish.IndexPages.IndexEntry;
+import de.unkrig.notemplate.javadocish.IndexPagination;
+import de.unkrig.notemplate.javadocish.Options;
+
+public
+class IndexPaginationTest {
+
+    private static final Pattern TITLE = Pattern.compile("<title>(.*)-Index</title>");
+    private static final Pattern KEY   = Pattern.compile("<span class=\"strong\"><a href=\"[^\"]*\">([^<]*)</a>");
+
+    private static final String KEYS = "a1 a2 a3 b1 b2 c1 s1 s2 s3 s4 s5 s6 s7 s8 s9 s10 z1";
+
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test public void
+    testNoPagination() throws IOException {
+
+        File dir = this.createSplitIndex(null, IndexPaginationTest.entries(IndexPaginationTest.KEYS, ""));
+
+        Assert.assertEquals(Arrays.asList("A", "B", "C", "S", "Z"), IndexPaginationTest.labels(dir));
+        Assert.assertEquals(10, IndexPaginationTest.keys(dir, 4).size());
+    }
+
+    @Test public void
+    testMaxEntries() throws IOException {
+
+        File dir = this.createSplitIndex(
+            IndexPagination.maxEntries(5),
+            IndexPaginationTest.entries(IndexPaginationTest.KEYS, "")
+        );
+
+        // "A" and "B" are merged, "C" does not fit into that page, and "S" is spread over two pages.
+        Assert.assertEquals(
+            Arrays.asList("A&ndash;B", "C", "S (1/2)", "S (2/2)", "Z"),
+            IndexPaginationTest.labels(dir)
+        );
+        Assert.assertEquals(Arrays.asList("a1", "a2", "a3", "b1", "b2"), IndexPaginationTest.keys(dir, 1));
+        Assert.assertEquals(Arrays.asList("c1"),                         IndexPaginationTest.keys(dir, 2));
+        Assert.assertEquals(Arrays.asList("s1", "s2", "s3", "s4", "s5"), IndexPaginationTest.keys(dir, 3));
+        Assert.assertEquals(Arrays.asList("s6", "s7", "s8", "s9", "s10"), IndexPaginationTest.keys(dir, 4));
+        Assert.assertEquals(Arrays.asList("z1"),                         IndexPaginationTest.keys(dir, 5));
+    }
+
+    @Test public void
+    testUnevenSplit() throws IOException {
+
+        File dir = this.createSplitIndex(
+            IndexPagination.maxEntries(4),
+            IndexPaginationTest.entries("s1 s2 s3 s4 s5 s6 s7 s8 s9 s10", "")
+        );
+
+        // The entries are spread (nearly) equally, not 4 + 4 + 2.
+        Assert.assertEquals(Arrays.asList("S (1/3)", "S (2/3)", "S (3/3)"), IndexPaginationTest.labels(dir));
+        Assert.assertEquals(Arrays.asList("s1", "s2", "s3", "s4"), IndexPaginationTest.keys(dir, 1));
+        Assert.assertEquals(Arrays.asList("s5", "s6", "s7"),       IndexPaginationTest.keys(dir, 2));
+        Assert.assertEquals(Arrays.asList("s8", "s9", "s10"),      IndexPaginationTest.keys(dir, 3));
+    }
+
+    @Test public void
+    testMaxChars() throws IOException {
+
+        char[] longDescription = new char[1000];
+        Arrays.fill(longDescription, 'x');
+
+        List<IndexEntry> entries = IndexPaginationTest.entries("a1 a2 a3 a4", new String(longDescription));
+        entries.addAll(IndexPaginationTest.entries("b1 b2 c1", ""));
+
+        File dir = this.createSplitIndex(IndexPagination.maxChars(2500), entries);
+
+        // The "A" entries are large, so "A" is split, although it has only four entries; the small "B" and "C" are
+        // merged.
+        Assert.assertEquals(Arrays.asList("A (1/2)", "A (2/2)", "B&ndash;C"), IndexPaginationTest.labels(dir));
+        Assert.assertEquals(Arrays.asList("a1", "a2"), IndexPaginationTest.keys(dir, 1));
+        Assert.assertEquals(Arrays.asList("a3", "a4"), IndexPaginationTest.keys(dir, 2));
+    }
+
+    private File
+    createSplitIndex(@Nullable IndexPagination pagination, List<IndexEntry> entries) throws IOException {
+
+        File destination = this.temporaryFolder.newFolder();
+
+        Options options = new Options();
+        options.destination     = destination;
+        options.splitIndex      = true;
+        options.noTimestamp     = true;
+        options.indexPagination = pagination;
+        options.renderSession   = new RenderSession(StandardCharsets.UTF_8, RenderListeners.NOP);
+        IndexPages.createIndex(entries, options, new String[] { "Overview", "overview-summary.html" });
+
+        return new File(destination, "index-files");
+    }
+
+    private static List<IndexEntry>
+    entries(String keys, String shortDescription) {
+        List<IndexEntry> result = new ArrayList<>();
+        for (String key : keys.split(" ")) {
+            result.add(IndexPages.indexEntry(key, key + ".html", "Explanation", shortDescription));
+        }
+        return result;
+    }
+
+    /**
+     * @return The labels of the pages, as they appear in their titles
+     */
+    private static List<String>
+    labels(File dir) throws IOException {
+
+        List<String> result = new ArrayList<>();
+        for (int idx = 1;; idx++) {
+            File file = new File(dir, "index-" + idx + ".html");
+            if (!file.exists()) return result;
+
+            Matcher m = IndexPaginationTest.TITLE.matcher(IndexPaginationTest.read(file));
+            Assert.assertTrue(file.toString(), m.find());
+            result.add(m.group(1));
+        }
+    }
+
+    /**
+     * @return The keys of the entries on the given page
+     */
+    private static List<String>
+    keys(File dir, int idx) throws IOException {
+
+        List<String> result = new ArrayList<>();
+        Matcher      m      = IndexPaginationTest.KEY.matcher(
+            IndexPaginationTest.read(new File(dir, "index-" + idx + ".html"))
+        );
+        while (m.find()) result.add(m.group(1));
+        return result;
+    }
+
+    private static String
+    read(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,184 @@
+
+/*
+ * No-Template - an extremely light-weight templating framework
+ *
+ * Copyright (c) 2015, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.unkrig.notemplate.RenderListener;
+import de.unkrig.notemplate.RenderSession;
+import de.unkrig.notemplate.javadocish.IndexPages;
+import de.unkrig.notemplate.javadocish.IndexPages.IndexEntry;
+import de.unkrig.notemplate.javadocish.Options;
+import de.unkrig.notemplate.util.Entities;
+import de.unkrig.notemplate.util.Entities.LoneSurrogatePolicy;
+
+public
+class IndexStateTest {
+
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test public void
+    testUnchangedPagesAreSkipped() throws IOException {
+
+        File destination = this.temporaryFolder.getRoot();
+
+        Assert.assertEquals(
+            Arrays.asList("index-1.html", "index-2.html", "index-3.html"),
+            IndexStateTest.createSplitIndex(destination, true, IndexStateTest.entries("a1 a2 b1 b2 c1", "b2"))
+        );
+        Assert.assertEquals(
+            Collections.emptyList(),
+            IndexStateTest.createSplitIndex(destination, true, IndexStateTest.entries("a1 a2 b1 b2 c1", "b2"))
+        );
+
+        // Change the explanations of entries on page 2 only.
+        Assert.assertEquals(
+            Arrays.asList("index-2.html"),
+            IndexStateTest.createSplitIndex(destination, true, IndexStateTest.entries("a1 a2 b1 b2 c1", "b1"))
+        );
+    }
+
+    @Test public void
+    testMissingPageIsRendered() throws IOException {
+
+        File destination = this.temporaryFolder.getRoot();
+
+        IndexStateTest.createSplitIndex(destination, true, IndexStateTest.entries("a1 b1 c1", ""));
+        Assert.assertTrue(new File(destination, "index-files/index-1.html").delete());
+
+        Assert.assertEquals(
+            Arrays.asList("index-1.html"),
+            IndexStateTest.createSplitIndex(destination, true, IndexStateTest.entries("a1 b1 c1", ""))
+        );
+    }
+
+    @Test public void
+    testStalePagesAreDeleted() throws IOException {
+
+        File destination = this.temporaryFolder.getRoot();
+        File indexFiles  = new File(destination, "index-files");
+
+        IndexStateTest.createSplitIndex(destination, true, IndexStateTest.entries("a1 b1 c1", ""));
+        Assert.assertTrue(new File(indexFiles, "index-3.html").isFile());
+
+        // The page count changes, which changes the navigation of all remaining pages.
+        Assert.assertEquals(
+            Arrays.asList("index-1.html", "index-2.html"),
+            IndexStateTest.createSplitIndex(destination, true, IndexStateTest.entries("a1 b1", ""))
+        );
+        Assert.assertFalse(new File(indexFiles, "index-3.html").exists());
+    }
+
+    @Test public void
+    testNonIncrementalRunDiscardsState() throws IOException {
+
+        File destination = this.temporaryFolder.getRoot();
+
+        IndexStateTest.createSplitIndex(destination, true,  IndexStateTest.entries("a1 b1", ""));
+        IndexStateTest.createSplitIndex(destination, false, IndexStateTest.entries("a1 b1", "b1"));
+
+        // The pages of the preceding (non-incremental) run differ from what the state says.
+        Assert.assertEquals(
+            Arrays.asList("index-1.html", "index-2.html"),
+            IndexStateTest.createSplitIndex(destination, true, IndexStateTest.entries("a1 b1", ""))
+        );
+    }
+
+    @Test public void
+    testGlobalSettingsInvalidateState() throws IOException {
+
+        File destination = this.temporaryFolder.getRoot();
+
+        IndexStateTest.createSplitIndex(destination, true, IndexStateTest.entries("a1 b1", ""));
+
+        LoneSurrogatePolicy previous = Entities.getLoneSurrogatePolicy();
+        Entities.setLoneSurrogatePolicy(LoneSurrogatePolicy.DROP);
+        try {
+            Assert.assertEquals(
+                Arrays.asList("index-1.html", "index-2.html"),
+                IndexStateTest.createSplitIndex(destination, true, IndexStateTest.entries("a1 b1", ""))
+            );
+        } finally {
+            Entities.setLoneSurrogatePolicy(previous);
+        }
+    }
+
+    /**
+     * Creates a split index.
+     *
+     * @return The names of the index pages that were rendered, sorted
+     */
+    private static List<String>
+    createSplitIndex(File destination, boolean incremental, List<IndexEntry> entries) throws IOException {
+
+        List<String> result = Collections.synchronizedList(new ArrayList<String>());
+
+        Options options = new Options();
+        options.destination      = destination;
+        options.splitIndex       = true;
+        options.noTimestamp      = true;
+        options.incrementalIndex = incremental;
+        options.renderSession    = new RenderSession(StandardCharsets.UTF_8, new RenderListener() {
+
+            @Override public void
+            fileStarted(File outputFile) {
+                if (outputFile.getName().startsWith("index-")) result.add(outputFile.getName());
+            }
+
+            @Override public void
+            fileCompleted(File outputFile, long byteCount) {}
+        });
+        IndexPages.createIndex(entries, options, new String[] { "Overview", "overview-summary.html" });
+
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     * @param changedKey The entry whose explanation differs from that of the other entries
+     */
+    private static List<IndexEntry>
+    entries(String keys, String changedKey) {
+        List<IndexEntry> result = new ArrayList<>();
+        for (String key : keys.split(" ")) {
+            String explanation = key.equals(changedKey) ? "Changed explanation" : "Explanation";
+            result.add(IndexPages.indexEntry(key, key + ".html", explanation, ""));
+        }
+        return result;
+    }
+}
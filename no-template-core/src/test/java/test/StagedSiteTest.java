@@ -0,0 +1,145 @@
+
+/*
+ * No-Template - an extremely light-weight templating framework
+ *
+ * Copyright (c) 2015, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.unkrig.notemplate.StagedSite;
+import de.unkrig.notemplate.StagedSite.PublishMode;
+
+public
+class StagedSiteTest {
+
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test public void
+    testSymlinkPublish() throws IOException {
+
+        File site = new File(this.temporaryFolder.getRoot(), "site");
+
+        StagedSite staged1 = StagedSite.stage(site, PublishMode.SYMLINK, false);
+        StagedSiteTest.write(staged1.getDirectory(), "index.html", "one");
+        Assert.assertFalse(site.exists());
+        staged1.publish();
+        staged1.discard();
+
+        Assert.assertTrue(Files.isSymbolicLink(site.toPath()));
+        Assert.assertEquals("one", StagedSiteTest.read(site, "index.html"));
+
+        // Files that are not re-generated are carried over from the live site.
+        StagedSite staged2 = StagedSite.stage(site, PublishMode.SYMLINK, true);
+        StagedSiteTest.write(staged2.getDirectory(), "other.html", "two");
+        Assert.assertEquals("one", StagedSiteTest.read(staged2.getDirectory(), "index.html"));
+        Assert.assertFalse(new File(site, "other.html").exists());
+        staged2.publish();
+
+        Assert.assertEquals("one", StagedSiteTest.read(site, "index.html"));
+        Assert.assertEquals("two", StagedSiteTest.read(site, "other.html"));
+    }
+
+    @Test public void
+    testRenamePublish() throws IOException {
+
+        File site = new File(this.temporaryFolder.getRoot(), "site");
+        Assert.assertTrue(site.mkdir());
+        StagedSiteTest.write(site, "index.html", "old");
+
+        StagedSite staged = StagedSite.stage(site, PublishMode.RENAME, false);
+        StagedSiteTest.write(staged.getDirectory(), "index.html", "new");
+        Assert.assertEquals("old", StagedSiteTest.read(site, "index.html"));
+        staged.publish();
+
+        Assert.assertFalse(Files.isSymbolicLink(site.toPath()));
+        Assert.assertEquals("new", StagedSiteTest.read(site, "index.html"));
+        Assert.assertFalse(staged.getDirectory().exists());
+
+        // The old live site was retired as a generation.
+        Assert.assertEquals(1, StagedSite.deleteOldGenerations(site, 0));
+    }
+
+    @Test(expected = IOException.class) public void
+    testSymlinkModeRejectsDirectory() throws IOException {
+
+        File site = this.temporaryFolder.newFolder("site");
+
+        StagedSite.stage(site, PublishMode.SYMLINK, false);
+    }
+
+    @Test public void
+    testDiscard() throws IOException {
+
+        File site = new File(this.temporaryFolder.getRoot(), "site");
+
+        StagedSite staged = StagedSite.stage(site, PublishMode.SYMLINK, false);
+        StagedSiteTest.write(staged.getDirectory(), "index.html", "x");
+        staged.discard();
+
+        Assert.assertFalse(staged.getDirectory().exists());
+        Assert.assertFalse(site.exists());
+    }
+
+    @Test public void
+    testDeleteOldGenerationsKeepsLive() throws IOException {
+
+        File site = new File(this.temporaryFolder.getRoot(), "site");
+
+        for (int i = 0; i < 4; i++) {
+            StagedSite staged = StagedSite.stage(site, PublishMode.SYMLINK, false);
+            StagedSiteTest.write(staged.getDirectory(), "index.html", "gen" + i);
+            staged.publish();
+        }
+
+        // Three generations are not live; keep one of them.
+        Assert.assertEquals(2, StagedSite.deleteOldGenerations(site, 1));
+        Assert.assertEquals(0, StagedSite.deleteOldGenerations(site, 1));
+        Assert.assertEquals("gen3", StagedSiteTest.read(site, "index.html"));
+
+        // Even with "keep=0", the live generation survives.
+        Assert.assertEquals(1, StagedSite.deleteOldGenerations(site, 0));
+        Assert.assertEquals("gen3", StagedSiteTest.read(site, "index.html"));
+    }
+
+    private static void
+    write(File dir, String name, String content) throws IOException {
+        Files.write(new File(dir, name).toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String
+    read(File dir, String name) throws IOException {
+        Path path = new File(dir, name).toPath();
+        return new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,253 @@
+
+/*
+ * No-Template - an extremely light-weight templating framework
+ *
+ * Copyright (c) 2015, Arno Unkrig
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the
+ * following conditions are met:
+ *
+ *    1. Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *       following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the
+ *       following disclaimer in the documentation and/or other materials provided with the distribution.
+ *    3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote
+ *       products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.unkrig.notemplate.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import de.unkrig.commons.io.IoUtil;
+import de.unkrig.commons.lang.protocol.ConsumerWhichThrows;
+
+/**
+ * Generates the Java source of the HTML character reference table of {@code de.unkrig.notemplate.util.Entities}
+ * from the resource "{@code html-character-entities.properties}", so that the table needs not be loaded and parsed
+ * at runtime.
+ * <p>
+ *   The generated source is checked in; re-generate it after modifying the properties file.
+ * </p>
+ */
+public final
+class MakeEntityTable {
+
+    private MakeEntityTable() {}
+
+    /**
+     * The number of code units per source line.
+     */
+    private static final int CODE_UNITS_PER_LINE = 16;
+
+    /**
+     * The number of entity names per source line.
+     */
+    private static final int NAMES_PER_LINE = 8;
+
+    /**
+     * The maximum number of characters per string constant; the JVM limits a string constant to 65535 (UTF-8)
+     * bytes.
+     */
+    private static final int MAX_CONSTANT_LENGTH = 30000;
+
+    /**
+     * <h2>Usage:</h2>
+     * <dl>
+     *   <dt>{@code MakeEntityTable} [ {@code -d} <var>dir</var> ]</dt>
+     *   <dd>
+     *     Generates "<var>dir</var>{@code /de/unkrig/notemplate/util/HtmlCharacterReferences.java}". <var>dir</var>
+     *     defaults to "{@code .}"; typically it is "{@code no-template-core/src/main/java}".
+     *   </dd>
+     * </dl>
+     */
+    public static void
+    main(String[] args) throws IOException {
+
+        File destination = new File(".");
+        for (int idx = 0; idx < args.length;) {
+            String arg = args[idx++];
+            if ("-d".equals(arg)) {
+                destination = new File(args[idx++]);
+            } else
+            {
+                System.err.println("Unrecognized command line argument \"" + arg + "\"");
+                System.exit(1);
+            }
+        }
+
+        // Load the HTML character entities of the non-ASCII characters.
+        Map<Character, String> entities = new HashMap<Character, String>();
+        int                    end      = 128;
+        {
+            InputStream is = MakeEntityTable.class.getResourceAsStream("html-character-entities.properties");
+            assert is != null : "Resource \"html-character-entities.properties\" not found";
+
+            Properties p = new Properties();
+            try {
+                p.load(is);
+            } finally {
+                is.close();
+            }
+
+            for (Entry<Object, Object> e : p.entrySet()) {
+                String key   = (String) e.getKey();
+                String value = (String) e.getValue();
+
+                if (key.length() != 1) throw new IOException("Invalid key \"" + key + "\"");
+
+                char c = key.charAt(0);
+                if (c < 128) continue;
+
+                entities.put(c, value);
+                end = Math.max(end, c + 1);
+            }
+        }
+
+        // Choose the shorter of the entity reference and the numeric character reference.
+        final String[] references = new String[end - 128];
+        for (int c = 128; c < end; c++) {
+            String numeric = "&#" + c + ';';
+            String entity  = entities.get((char) c);
+            references[c - 128] = (
+                entity != null && entity.length() + 2 <= numeric.length()
+                ? '&' + entity + ';'
+                : numeric
+            );
+        }
+
+        final int                          end2      = end;
+        final SortedMap<Character, String> entities2 = new TreeMap<Character, String>(entities);
+        IoUtil.outputFilePrintWriter(
+            new File(destination, "de/unkrig/notemplate/util/HtmlCharacterReferences.java"),
+            Charset.forName("US-ASCII"),
+            new ConsumerWhichThrows<PrintWriter, IOException>() {
+
+                @Override public void
+                consume(PrintWriter pw) {
+
+                    // The sources of this project have CRLF line separators, independent of the platform.
+                    PrintWriter pw2 = new PrintWriter(pw) {
+                        @Override public void println() { this.print("\r\n"); }
+                    };
+                    MakeEntityTable.generate(references, end2, entities2, pw2);
+                    pw2.flush();
+                }
+            },
+            true
+        );
+    }
+
+    private static void
+    generate(String[] references, int end, SortedMap<Character, String> entities, PrintWriter pw) {
+
+        pw.println();
+        pw.println("// Generated by \"" + MakeEntityTable.class.getName() + "\" - do not edit!");
+        pw.println();
+        pw.println("// SUPPRESS CHECKSTYLE Wrap|LineLength:99999");
+        pw.println();
+        pw.println("package de.unkrig.notemplate.util;");
+        pw.println();
+        pw.println("/**");
+        pw.println(" * The replacements of the non-ASCII code units up to the last one that has an HTML character entity:");
+        pw.println(" * Each is the shorter of the HTML character entity reference and the numeric character reference.");
+        pw.println(" */");
+        pw.println("final");
+        pw.println("class HtmlCharacterReferences {");
+        pw.println();
+        pw.println("    private HtmlCharacterReferences() {}");
+        pw.println();
+        pw.println("    /**");
+        pw.println("     * The first code unit that is <em>not</em> in the table.");
+        pw.println("     */");
+        pw.println("    static final int END = 0x" + Integer.toHexString(end).toUpperCase() + ";");
+
+        // Split the table into several string constants.
+        int constantCount = 0;
+        for (int i = 0; i < references.length;) {
+
+            pw.println();
+            pw.println("    private static final String C" + constantCount++ + " = (");
+
+            int length = 0;
+            for (
+                boolean first = true;
+                i < references.length && length < MakeEntityTable.MAX_CONSTANT_LENGTH;
+                first = false
+            ) {
+                StringBuilder line = new StringBuilder();
+                int           from = i;
+                for (; i < references.length && i < from + MakeEntityTable.CODE_UNITS_PER_LINE; i++) {
+                    line.append(references[i]);
+                }
+                length += line.length();
+                pw.println(
+                    "        "
+                    + (first ? "  " : "+ ")
+                    + '"'
+                    + line
+                    + "\" // U+"
+                    + String.format("%04X", from + 128)
+                );
+            }
+            pw.println("    );");
+        }
+
+        pw.println();
+        pw.println("    /**");
+        pw.println("     * @return The replacements of the code units 128 through {@link #END}{@code - 1}, concatenated;");
+        pw.println("     *         each ends with a semicolon");
+        pw.println("     */");
+        pw.println("    static String");
+        pw.println("    chars() {");
+        pw.print("        return new StringBuilder(" + MakeEntityTable.totalLength(references) + ")");
+        for (int i = 0; i < constantCount; i++) pw.print(".append(C" + i + ")");
+        pw.println(".toString();");
+        pw.println("    }");
+
+        // The names of all entities, including those that are longer than the numeric character reference.
+        pw.println();
+        pw.println("    private static final String NAMES = (");
+        int n = 0;
+        for (Entry<Character, String> e : entities.entrySet()) {
+            if (n % MakeEntityTable.NAMES_PER_LINE == 0) pw.print(n == 0 ? "          \"" : "        + \"");
+            pw.print(e.getValue() + ";\\u" + String.format("%04X", (int) e.getKey()));
+            if (++n % MakeEntityTable.NAMES_PER_LINE == 0 || n == entities.size()) pw.println("\"");
+        }
+        pw.println("    );");
+        pw.println();
+        pw.println("    /**");
+        pw.println("     * @return The names of all HTML character entities of non-ASCII code units, each followed by a semicolon");
+        pw.println("     *         and the code unit");
+        pw.println("     */");
+        pw.println("    static String");
+        pw.println("    names() { return NAMES; }");
+        pw.println("}");
+    }
+
+    private static int
+    totalLength(String[] references) {
+        int result = 0;
+        for (String r : references) result += r.length();
+        return result;
+    }
+}